@@ -0,0 +1,602 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Signer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A local HTTP server speaking the subset of the EC2 Query API the adapter uses.
+ *
+ * It serves DescribeInstances over a generated inventory (see DescribeInstancesFixture), with
+ * Filter.N.Name/Value.M filters (values ORed, * and ? wildcards), InstanceId.N, and MaxResults and
+ * NextToken paging, and answers invalid requests with the EC2 error codes.  DescribeInstanceStatus
+ * lists the state of the same instances, which can be launched, changed and removed while the
+ * server runs.  Every request must be
+ * signed with Signature Version 4 by the stub's credentials for the Host it was sent to.  Latency,
+ * throttling (503 RequestLimitExceeded) and server errors (500 InternalError) can be injected, and
+ * may be changed while the server is running.
+ */
+public class AmazonEC2StubServer {
+
+    public static final String ACCESS_KEY = "AKIDEXAMPLE";
+    public static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+
+    /** The largest difference between the request date and the server clock that is accepted. */
+    private static final long MAX_CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final Pattern AUTHORIZATION = Pattern.compile(
+        "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/([^/]+)/aws4_request, "
+        + "SignedHeaders=([^,]+), Signature=([0-9a-f]{64})");
+    private static final Pattern STATE = Pattern.compile("<instanceState>.*?</instanceState>");
+    private static final Map<String,Integer> STATE_CODES = new HashMap<String,Integer>();
+    static {
+        STATE_CODES.put("pending", 0);
+        STATE_CODES.put("running", 16);
+        STATE_CODES.put("shutting-down", 32);
+        STATE_CODES.put("terminated", 48);
+        STATE_CODES.put("stopping", 64);
+        STATE_CODES.put("stopped", 80);
+    }
+
+    /** Replaced, never modified, when instances are launched, changed or removed. */
+    private volatile Inventory inventory;
+    private int nextIndex;
+    private final AmazonEC2Signer signer = new AmazonEC2Signer(ACCESS_KEY, SECRET_KEY);
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+
+    private volatile int latencyMillis = 0;
+    private volatile int latencyJitterMillis = 0;
+    private volatile double throttleRate = 0;
+    private volatile double errorRate = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a server on a free local port for an inventory of the given number of instances.
+     */
+    public AmazonEC2StubServer(int instanceCount) throws IOException, BridgeError {
+        this.inventory = new Inventory(DescribeInstancesFixture.instances(instanceCount));
+        this.nextIndex = instanceCount;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AmazonEC2StubServer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getEndpoint() {
+        return "http://"+getHost()+"/";
+    }
+
+    public String getHost() {
+        return "127.0.0.1:"+server.getAddress().getPort();
+    }
+
+    public List<JSONObject> getInstances() {
+        return inventory.instances;
+    }
+
+    /**
+     * Adds a new pending instance and returns its instanceId.
+     */
+    public synchronized String launchInstance() throws BridgeError {
+        String fragment = setState(DescribeInstancesFixture.instance(nextIndex++), "pending");
+        List<String> fragments = new ArrayList<String>(inventory.fragments);
+        fragments.add(fragment);
+        inventory = new Inventory(fragments);
+        return inventory.instances.get(fragments.size() - 1).getString("instanceId");
+    }
+
+    /**
+     * Changes the state of an instance, as starting, stopping or terminating it would.
+     */
+    public synchronized void setInstanceState(String instanceId, String state) throws BridgeError {
+        List<String> fragments = new ArrayList<String>(inventory.fragments);
+        int position = position(instanceId);
+        fragments.set(position, setState(fragments.get(position), state));
+        inventory = new Inventory(fragments);
+    }
+
+    /**
+     * Removes an instance, as EC2 does some time after it was terminated.
+     */
+    public synchronized void removeInstance(String instanceId) throws BridgeError {
+        List<String> fragments = new ArrayList<String>(inventory.fragments);
+        fragments.remove(position(instanceId));
+        inventory = new Inventory(fragments);
+    }
+
+    /**
+     * Delays every response by the latency plus a uniformly random amount up to the jitter.
+     */
+    public void setLatency(int latencyMillis, int latencyJitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+    }
+
+    /** The fraction of requests answered with RequestLimitExceeded. */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /** The fraction of requests answered with InternalError. */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** The number of requests rejected as invalid or unauthenticated. */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        SortedMap<String,String> parameters;
+        try {
+            parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            reject(exchange, 400, "InvalidParameterValue", "The query string is malformed.");
+            return;
+        }
+
+        String authenticationError = authenticate(exchange, parameters);
+        if (authenticationError != null) {
+            String code = authenticationError.substring(0, authenticationError.indexOf(':'));
+            reject(exchange, code.equals("AuthFailure") ? 401 : 403, code,
+                authenticationError.substring(code.length() + 2));
+            return;
+        }
+
+        int delay = latencyMillis + (latencyJitterMillis > 0 ? nextInt(latencyJitterMillis + 1) : 0);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (throttleRate > 0 && nextDouble() < throttleRate) {
+            throttled.incrementAndGet();
+            sendError(exchange, 503, "RequestLimitExceeded", "Request limit exceeded.");
+            return;
+        }
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            failed.incrementAndGet();
+            sendError(exchange, 500, "InternalError", "An internal error has occurred.");
+            return;
+        }
+
+        if ("DescribeInstances".equals(parameters.get("Action"))) {
+            describeInstances(exchange, parameters);
+        } else if ("DescribeInstanceStatus".equals(parameters.get("Action"))) {
+            describeInstanceStatus(exchange, parameters);
+        } else {
+            reject(exchange, 400, "InvalidAction", "The action "+parameters.get("Action")+" is not valid for this web service.");
+        }
+    }
+
+    private void describeInstances(HttpExchange exchange, SortedMap<String,String> parameters)
+        throws IOException
+    {
+        Inventory inventory = this.inventory;
+        List<String> instanceIds = new ArrayList<String>();
+        for (int n = 1; parameters.containsKey("InstanceId."+n); n++) {
+            instanceIds.add(parameters.get("InstanceId."+n));
+        }
+        Map<String,List<Pattern>> filters = new TreeMap<String,List<Pattern>>();
+        for (int n = 1; parameters.containsKey("Filter."+n+".Name"); n++) {
+            List<Pattern> values = new ArrayList<Pattern>();
+            for (int m = 1; parameters.containsKey("Filter."+n+".Value."+m); m++) {
+                values.add(glob(parameters.get("Filter."+n+".Value."+m)));
+            }
+            String name = parameters.get("Filter."+n+".Name");
+            if (!isSupportedFilter(name)) {
+                reject(exchange, 400, "InvalidParameterValue", "The filter '"+name+"' is invalid");
+                return;
+            }
+            filters.put(name, values);
+        }
+
+        int maxResults = Integer.MAX_VALUE;
+        if (parameters.containsKey("MaxResults")) {
+            if (!instanceIds.isEmpty()) {
+                reject(exchange, 400, "InvalidParameterCombination",
+                    "The parameter instancesSet cannot be used with the parameter maxResults");
+                return;
+            }
+            try {
+                maxResults = Integer.parseInt(parameters.get("MaxResults"));
+            } catch (NumberFormatException e) {
+                maxResults = -1;
+            }
+            if (maxResults < 5 || maxResults > 1000) {
+                reject(exchange, 400, "InvalidParameterValue",
+                    "Value ( "+parameters.get("MaxResults")+" ) for parameter maxResults is invalid. "
+                    + "Expecting a value between 5 and 1000.");
+                return;
+            }
+        }
+        int offset = 0;
+        if (parameters.containsKey("NextToken")) {
+            try {
+                offset = Integer.parseInt(parameters.get("NextToken"));
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0) {
+                reject(exchange, 400, "InvalidParameterValue", "The token '"+parameters.get("NextToken")+"' is invalid.");
+                return;
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<Integer>();
+        if (instanceIds.isEmpty()) {
+            for (int i = 0; i < inventory.instances.size(); i++) candidates.add(i);
+        } else {
+            Set<String> missing = new LinkedHashSet<String>();
+            for (String instanceId : new LinkedHashSet<String>(instanceIds)) {
+                Integer position = inventory.positions.get(instanceId);
+                if (position == null) {
+                    missing.add(instanceId);
+                } else {
+                    candidates.add(position);
+                }
+            }
+            if (!missing.isEmpty()) {
+                String ids = missing.toString();
+                reject(exchange, 400, "InvalidInstanceID.NotFound",
+                    "The instance IDs '"+ids.substring(1, ids.length() - 1)+"' do not exist");
+                return;
+            }
+        }
+
+        List<String> selected = new ArrayList<String>();
+        for (Integer position : candidates) {
+            if (matches(inventory.instances.get(position), filters)) {
+                selected.add(inventory.fragments.get(position));
+            }
+        }
+        int end = (int)Math.min(selected.size(), (long)offset + maxResults);
+        int start = Math.min(offset, end);
+        send(exchange, 200, DescribeInstancesFixture.document(selected, start, end,
+            end < selected.size() ? String.valueOf(end) : null));
+    }
+
+    /**
+     * Lists the state of every instance, or only of the running instances unless
+     * IncludeAllInstances is true, paged as DescribeInstances is.
+     */
+    private void describeInstanceStatus(HttpExchange exchange, SortedMap<String,String> parameters)
+        throws IOException
+    {
+        Inventory inventory = this.inventory;
+        boolean includeAll = "true".equalsIgnoreCase(parameters.get("IncludeAllInstances"));
+        int maxResults = 1000;
+        if (parameters.containsKey("MaxResults")) {
+            try {
+                maxResults = Integer.parseInt(parameters.get("MaxResults"));
+            } catch (NumberFormatException e) {
+                maxResults = -1;
+            }
+            if (maxResults < 5 || maxResults > 1000) {
+                reject(exchange, 400, "InvalidParameterValue",
+                    "Value ( "+parameters.get("MaxResults")+" ) for parameter maxResults is invalid. "
+                    + "Expecting a value between 5 and 1000.");
+                return;
+            }
+        }
+        int offset = 0;
+        if (parameters.containsKey("NextToken")) {
+            try {
+                offset = Integer.parseInt(parameters.get("NextToken"));
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            if (offset < 0) {
+                reject(exchange, 400, "InvalidParameterValue", "The token '"+parameters.get("NextToken")+"' is invalid.");
+                return;
+            }
+        }
+
+        List<JSONObject> selected = new ArrayList<JSONObject>();
+        for (JSONObject instance : inventory.instances) {
+            if (includeAll || "running".equals(instance.getJSONObject("instanceState").getString("name"))) {
+                selected.add(instance);
+            }
+        }
+        int end = (int)Math.min(selected.size(), (long)offset + maxResults);
+        StringBuilder xml = new StringBuilder(256 + Math.max(0, end - offset) * 320);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<DescribeInstanceStatusResponse xmlns=\"http://ec2.amazonaws.com/doc/2016-11-15/\">")
+            .append("<requestId>").append(UUID.randomUUID()).append("</requestId><instanceStatusSet>");
+        for (int i = Math.min(offset, end); i < end; i++) {
+            JSONObject instance = selected.get(i);
+            JSONObject state = instance.getJSONObject("instanceState");
+            String health = "running".equals(state.getString("name")) ? "ok" : "not-applicable";
+            xml.append("<item><instanceId>").append(instance.getString("instanceId")).append("</instanceId>")
+                .append("<availabilityZone>").append(instance.getJSONObject("placement").getString("availabilityZone"))
+                .append("</availabilityZone><instanceState><code>").append(state.get("code"))
+                .append("</code><name>").append(state.getString("name")).append("</name></instanceState>")
+                .append("<systemStatus><status>").append(health).append("</status></systemStatus>")
+                .append("<instanceStatus><status>").append(health).append("</status></instanceStatus>")
+                .append("</item>");
+        }
+        xml.append("</instanceStatusSet>");
+        if (end < selected.size()) {
+            xml.append("<nextToken>").append(end).append("</nextToken>");
+        }
+        xml.append("</DescribeInstanceStatusResponse>");
+        send(exchange, 200, xml.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * Returns null if the request is signed correctly, otherwise "Code: message".
+     */
+    private String authenticate(HttpExchange exchange, SortedMap<String,String> parameters) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String amazonDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        Matcher matcher = (authorization == null) ? null : AUTHORIZATION.matcher(authorization);
+        if (matcher == null || !matcher.matches() || amazonDate == null || host == null) {
+            return "AuthFailure: AWS was not able to validate the provided access credentials";
+        }
+        if (!ACCESS_KEY.equals(matcher.group(1))) {
+            return "AuthFailure: AWS was not able to validate the provided access credentials";
+        }
+        Date date;
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            date = format.parse(amazonDate);
+        } catch (ParseException e) {
+            return "AuthFailure: The x-amz-date header is malformed";
+        }
+        if (Math.abs(System.currentTimeMillis() - date.getTime()) > MAX_CLOCK_SKEW_MILLIS) {
+            return "RequestExpired: Request has expired.";
+        }
+        String expected = signer.sign(host, matcher.group(3),
+            AmazonEC2Signer.canonicalQueryString(parameters), date).getAuthorization();
+        if (!expected.equals(authorization)) {
+            return "SignatureDoesNotMatch: The request signature we calculated does not match the "
+                + "signature you provided.";
+        }
+        return null;
+    }
+
+    private int position(String instanceId) {
+        Integer position = inventory.positions.get(instanceId);
+        if (position == null) {
+            throw new IllegalArgumentException("There is no instance "+instanceId+".");
+        }
+        return position;
+    }
+
+    private static String setState(String fragment, String state) {
+        return STATE.matcher(fragment).replaceFirst("<instanceState><code>"+STATE_CODES.get(state)
+            +"</code><name>"+state+"</name></instanceState>");
+    }
+
+    private static boolean matches(JSONObject instance, Map<String,List<Pattern>> filters) {
+        for (Map.Entry<String,List<Pattern>> filter : filters.entrySet()) {
+            List<String> actual = filterValues(instance, filter.getKey());
+            boolean matched = false;
+            for (Pattern pattern : filter.getValue()) {
+                for (String value : actual) {
+                    if (pattern.matcher(value).matches()) {
+                        matched = true;
+                        break;
+                    }
+                }
+                if (matched) break;
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupportedFilter(String name) {
+        return name.startsWith("tag:") || name.equals("tag-key") || name.equals("instance-id")
+            || name.equals("instance-type") || name.equals("instance-state-name")
+            || name.equals("availability-zone") || name.equals("vpc-id") || name.equals("subnet-id")
+            || name.equals("image-id") || name.equals("private-ip-address") || name.equals("key-name");
+    }
+
+    /**
+     * Returns the values an instance has for a filter.
+     */
+    private static List<String> filterValues(JSONObject instance, String name) {
+        List<String> values = new ArrayList<String>();
+        if (name.startsWith("tag:") || name.equals("tag-key")) {
+            JSONObject tagSet = instance.optJSONObject("tagSet");
+            Object items = (tagSet == null) ? null : tagSet.opt("item");
+            JSONArray tags = (items instanceof JSONArray) ? (JSONArray)items : new JSONArray();
+            if (items instanceof JSONObject) tags.put(items);
+            for (int i = 0; i < tags.length(); i++) {
+                JSONObject tag = tags.getJSONObject(i);
+                if (name.equals("tag-key")) {
+                    values.add(tag.optString("key"));
+                } else if (name.substring(4).equals(tag.optString("key"))) {
+                    values.add(tag.optString("value"));
+                }
+            }
+        } else if (name.equals("instance-state-name")) {
+            values.add(instance.getJSONObject("instanceState").optString("name"));
+        } else if (name.equals("availability-zone")) {
+            values.add(instance.getJSONObject("placement").optString("availabilityZone"));
+        } else {
+            // instance-id, instance-type, vpc-id, ... name the camel cased instance element
+            StringBuilder element = new StringBuilder();
+            for (String part : name.split("-")) {
+                element.append(element.length() == 0 ? part : Character.toUpperCase(part.charAt(0))+part.substring(1));
+            }
+            Object value = instance.opt(element.toString());
+            if (value != null) values.add(value.toString());
+        }
+        return values;
+    }
+
+    /**
+     * Converts an EC2 filter value, in which * and ? are wildcards and \ escapes, to a pattern.
+     */
+    private static Pattern glob(String value) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                regex.append(Pattern.quote(String.valueOf(value.charAt(++i))));
+            } else if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static SortedMap<String,String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = (equals < 0) ? pair : pair.substring(0, equals);
+            String value = (equals < 0) ? "" : pair.substring(equals + 1);
+            parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private void reject(HttpExchange exchange, int status, String code, String message) throws IOException {
+        rejected.incrementAndGet();
+        sendError(exchange, status, code, message);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message)
+        throws IOException
+    {
+        String body = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Response><Errors><Error><Code>"+code
+            +"</Code><Message>"+message.replace("&", "&amp;").replace("<", "&lt;")
+            +"</Message></Error></Errors><RequestID>"+UUID.randomUUID()+"</RequestID></Response>";
+        send(exchange, status, body.getBytes("UTF-8"));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/xml;charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream stream = exchange.getResponseBody();
+        stream.write(body);
+        stream.close();
+    }
+
+    private int nextInt(int bound) {
+        synchronized (random) {
+            return random.nextInt(bound);
+        }
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * The instances served, as response fragments and parsed for filtering, with the position of
+     * each instanceId.
+     */
+    private static class Inventory {
+        private final List<String> fragments;
+        private final List<JSONObject> instances;
+        private final Map<String,Integer> positions = new HashMap<String,Integer>();
+
+        private Inventory(List<String> fragments) throws BridgeError {
+            this.fragments = fragments;
+            this.instances = DescribeInstancesFixture.parse(
+                DescribeInstancesFixture.document(fragments, 0, fragments.size(), null), null);
+            for (int i = 0; i < instances.size(); i++) {
+                positions.put(instances.get(i).getString("instanceId"), i);
+            }
+        }
+    }
+
+}
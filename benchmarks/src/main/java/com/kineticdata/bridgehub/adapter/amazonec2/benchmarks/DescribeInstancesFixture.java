@@ -0,0 +1,224 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2ResponseParser;
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.json.JSONObject;
+
+/**
+ * Generates synthetic DescribeInstancesResponse documents shaped like real ones.
+ *
+ * Instances are grouped into reservations of one to five instances and carry the elements EC2
+ * returns for a VPC instance: placement, state, security groups, an EBS root volume, a network
+ * interface with its attachment and addresses, and a tag set of three to twelve tags mixing user
+ * and aws: tags.  Generation is seeded by the instance count, so a fixture of a given size is the
+ * same in every run.
+ */
+public class DescribeInstancesFixture {
+
+    private static final String[] INSTANCE_TYPES = {
+        "t2.micro", "t3.medium", "m5.large", "m5.xlarge", "c5.2xlarge", "r5.4xlarge"};
+    private static final String[] STATES = {"running", "running", "running", "stopped", "pending"};
+    private static final int[] STATE_CODES = {16, 16, 16, 80, 0};
+    private static final String[] ZONES = {"us-east-1a", "us-east-1b", "us-east-1c", "us-east-1d"};
+    private static final String[] ENVIRONMENTS = {"prod", "staging", "dev", "qa"};
+    private static final String[] TEAMS = {"platform", "payments", "search", "data", "identity"};
+    private static final String[] APPLICATIONS = {"web", "api", "worker", "cache", "batch", "db"};
+
+    /**
+     * Returns the UTF-8 encoded response document for the given number of instances.
+     */
+    public static byte[] generate(int instances) {
+        return document(instances(instances), 0, instances, null);
+    }
+
+    /**
+     * Returns the item element of each of the given number of instances.
+     */
+    public static List<String> instances(int instances) {
+        Random random = new Random(instances);
+        List<String> items = new ArrayList<String>(instances);
+        for (int i = 0; i < instances; i++) {
+            StringBuilder xml = new StringBuilder(4096);
+            appendInstance(xml, i, random);
+            items.add(xml.toString());
+        }
+        return items;
+    }
+
+    /**
+     * Returns the item element of a single instance, such as one launched after an inventory of
+     * instances(n) was generated.  Its instanceId is derived from the index.
+     */
+    public static String instance(int index) {
+        StringBuilder xml = new StringBuilder(4096);
+        appendInstance(xml, index, new Random(index));
+        return xml.toString();
+    }
+
+    /**
+     * Returns the UTF-8 encoded response document containing the instances from the start index
+     * (inclusive) to the end index (exclusive), in reservations of one to five instances.
+     *
+     * @param nextToken the nextToken of the response, or null if it is the last page
+     */
+    public static byte[] document(List<String> instances, int start, int end, String nextToken) {
+        Random random = new Random(start);
+        StringBuilder xml = new StringBuilder((end - start) * 4096 + 256);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+            .append("<DescribeInstancesResponse xmlns=\"http://ec2.amazonaws.com/doc/2016-11-15/\">")
+            .append("<requestId>59dbff89-35bd-4eac-99ed-be587EXAMPLE</requestId><reservationSet>");
+        for (int i = start; i < end; ) {
+            int size = Math.min(end - i, 1 + random.nextInt(5));
+            xml.append("<item><reservationId>r-").append(hex(i, 17)).append("</reservationId>")
+                .append("<ownerId>123456789012</ownerId><groupSet/><instancesSet>");
+            for (int j = 0; j < size; j++, i++) {
+                xml.append(instances.get(i));
+            }
+            xml.append("</instancesSet></item>");
+        }
+        xml.append("</reservationSet>");
+        if (nextToken != null) {
+            xml.append("<nextToken>").append(nextToken).append("</nextToken>");
+        }
+        xml.append("</DescribeInstancesResponse>");
+        try {
+            return xml.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a generated document, reading only the given item elements (or all of them if null).
+     */
+    public static List<JSONObject> parse(byte[] document, final Set<String> elements) throws BridgeError {
+        final List<JSONObject> items = new ArrayList<JSONObject>();
+        AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(new ByteArrayInputStream(document),
+            new AmazonEC2ResponseParser.ProjectedItemHandler() {
+                @Override
+                public boolean handle(JSONObject item) {
+                    items.add(item);
+                    return true;
+                }
+
+                @Override
+                public Set<String> getElements() {
+                    return elements;
+                }
+            });
+        return items;
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static void appendInstance(StringBuilder xml, int i, Random random) {
+        int state = random.nextInt(STATES.length);
+        String zone = ZONES[random.nextInt(ZONES.length)];
+        String subnet = "subnet-"+hex(zone.charAt(zone.length() - 1), 8);
+        String privateIp = "10.0."+random.nextInt(256)+"."+random.nextInt(256);
+        String privateDns = "ip-"+privateIp.replace('.', '-')+".ec2.internal";
+        String application = APPLICATIONS[random.nextInt(APPLICATIONS.length)];
+        String environment = ENVIRONMENTS[random.nextInt(ENVIRONMENTS.length)];
+
+        xml.append("<item>")
+            .append("<instanceId>i-").append(hex(i, 17)).append("</instanceId>")
+            .append("<imageId>ami-").append(hex(random.nextInt(8), 17)).append("</imageId>")
+            .append("<instanceState><code>").append(STATE_CODES[state]).append("</code><name>")
+            .append(STATES[state]).append("</name></instanceState>")
+            .append("<privateDnsName>").append(privateDns).append("</privateDnsName>")
+            .append("<dnsName/><reason/>")
+            .append("<keyName>").append(environment).append("-key</keyName>")
+            .append("<amiLaunchIndex>").append(random.nextInt(3)).append("</amiLaunchIndex>")
+            .append("<productCodes/>")
+            .append("<instanceType>").append(INSTANCE_TYPES[random.nextInt(INSTANCE_TYPES.length)])
+            .append("</instanceType>")
+            .append("<launchTime>2023-").append(pad(1 + random.nextInt(12))).append("-")
+            .append(pad(1 + random.nextInt(28))).append("T").append(pad(random.nextInt(24)))
+            .append(":").append(pad(random.nextInt(60))).append(":00.000Z</launchTime>")
+            .append("<placement><availabilityZone>").append(zone)
+            .append("</availabilityZone><groupName/><tenancy>default</tenancy></placement>")
+            .append("<monitoring><state>disabled</state></monitoring>")
+            .append("<subnetId>").append(subnet).append("</subnetId>")
+            .append("<vpcId>vpc-1a2b3c4d</vpcId>")
+            .append("<privateIpAddress>").append(privateIp).append("</privateIpAddress>")
+            .append("<sourceDestCheck>true</sourceDestCheck>")
+            .append("<groupSet><item><groupId>sg-").append(hex(random.nextInt(4), 8))
+            .append("</groupId><groupName>").append(application).append("-sg</groupName></item></groupSet>")
+            .append("<architecture>x86_64</architecture>")
+            .append("<rootDeviceType>ebs</rootDeviceType><rootDeviceName>/dev/xvda</rootDeviceName>")
+            .append("<blockDeviceMapping><item><deviceName>/dev/xvda</deviceName><ebs><volumeId>vol-")
+            .append(hex(i, 17)).append("</volumeId><status>attached</status>")
+            .append("<attachTime>2023-01-01T00:00:00.000Z</attachTime>")
+            .append("<deleteOnTermination>true</deleteOnTermination></ebs></item></blockDeviceMapping>")
+            .append("<virtualizationType>hvm</virtualizationType>")
+            .append("<clientToken/>");
+
+        xml.append("<tagSet>");
+        appendTag(xml, "Name", application+"-"+environment+"-"+i);
+        appendTag(xml, "Environment", environment);
+        appendTag(xml, "Application", application);
+        int extraTags = random.nextInt(10);
+        if (extraTags > 0) appendTag(xml, "Team", TEAMS[random.nextInt(TEAMS.length)]);
+        if (extraTags > 1) appendTag(xml, "CostCenter", "cc-"+(1000 + random.nextInt(50)));
+        if (extraTags > 2) appendTag(xml, "Owner", "owner"+random.nextInt(200)+"@example.com");
+        if (extraTags > 3) appendTag(xml, "aws:cloudformation:stack-name", application+"-"+environment);
+        if (extraTags > 4) appendTag(xml, "aws:autoscaling:groupName", application+"-"+environment+"-asg");
+        if (extraTags > 5) appendTag(xml, "Backup", random.nextBoolean() ? "daily" : "weekly");
+        if (extraTags > 6) appendTag(xml, "Patch Group", environment+"-linux");
+        if (extraTags > 7) appendTag(xml, "Compliance", "pci");
+        if (extraTags > 8) appendTag(xml, "Version", "1."+random.nextInt(40)+"."+random.nextInt(10));
+        xml.append("</tagSet>");
+
+        xml.append("<hypervisor>xen</hypervisor>")
+            .append("<networkInterfaceSet><item><networkInterfaceId>eni-").append(hex(i, 17))
+            .append("</networkInterfaceId><subnetId>").append(subnet)
+            .append("</subnetId><vpcId>vpc-1a2b3c4d</vpcId><description/>")
+            .append("<ownerId>123456789012</ownerId><status>in-use</status>")
+            .append("<macAddress>02:").append(hex(i & 0xff, 2)).append(":3a:4b:5c:6d</macAddress>")
+            .append("<privateIpAddress>").append(privateIp).append("</privateIpAddress>")
+            .append("<privateDnsName>").append(privateDns).append("</privateDnsName>")
+            .append("<sourceDestCheck>true</sourceDestCheck>")
+            .append("<groupSet><item><groupId>sg-").append(hex(random.nextInt(4), 8))
+            .append("</groupId><groupName>").append(application).append("-sg</groupName></item></groupSet>")
+            .append("<attachment><attachmentId>eni-attach-").append(hex(i, 17))
+            .append("</attachmentId><deviceIndex>0</deviceIndex><status>attached</status>")
+            .append("<attachTime>2023-01-01T00:00:00.000Z</attachTime>")
+            .append("<deleteOnTermination>true</deleteOnTermination></attachment>")
+            .append("<privateIpAddressesSet><item><privateIpAddress>").append(privateIp)
+            .append("</privateIpAddress><privateDnsName>").append(privateDns)
+            .append("</privateDnsName><primary>true</primary></item></privateIpAddressesSet>")
+            .append("</item></networkInterfaceSet>")
+            .append("<ebsOptimized>false</ebsOptimized><enaSupport>true</enaSupport>")
+            .append("<cpuOptions><coreCount>1</coreCount><threadsPerCore>2</threadsPerCore></cpuOptions>")
+            .append("<metadataOptions><state>applied</state><httpTokens>required</httpTokens>")
+            .append("<httpPutResponseHopLimit>1</httpPutResponseHopLimit>")
+            .append("<httpEndpoint>enabled</httpEndpoint></metadataOptions>")
+            .append("</item>");
+    }
+
+    private static void appendTag(StringBuilder xml, String key, String value) {
+        xml.append("<item><key>").append(key).append("</key><value>").append(value).append("</value></item>");
+    }
+
+    private static String hex(int value, int width) {
+        String hex = Integer.toHexString(value);
+        StringBuilder padded = new StringBuilder(width);
+        for (int i = hex.length(); i < width; i++) {
+            padded.append('0');
+        }
+        return padded.append(hex).toString();
+    }
+
+    private static String pad(int value) {
+        return (value < 10) ? "0"+value : String.valueOf(value);
+    }
+
+}
@@ -0,0 +1,310 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Adapter;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Error;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Drives count, retrieve and search calls through an adapter configured against an
+ * AmazonEC2StubServer from many threads, and reports the throughput, latency percentiles and
+ * errors of each operation, the requests the stub received and the adapter's own counters.
+ *
+ * Options are given as name=value arguments; run with help for the list.
+ */
+public class LoadHarness {
+
+    private static final Map<String,String> DEFAULTS = new LinkedHashMap<String,String>();
+    static {
+        DEFAULTS.put("threads", "16");
+        DEFAULTS.put("warmup", "5");
+        DEFAULTS.put("duration", "30");
+        DEFAULTS.put("instances", "5000");
+        DEFAULTS.put("mix", "count:1,retrieve:2,search:2");
+        DEFAULTS.put("latency", "20");
+        DEFAULTS.put("jitter", "10");
+        DEFAULTS.put("throttle", "0");
+        DEFAULTS.put("errors", "0");
+        DEFAULTS.put("pageSize", "1000");
+        DEFAULTS.put("rateLimit", "0");
+        DEFAULTS.put("maxRetries", "3");
+        DEFAULTS.put("cacheTtl", "0");
+    }
+    private static final String[] OPERATIONS = {"count", "retrieve", "search"};
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> options = new LinkedHashMap<String,String>(DEFAULTS);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0 || !DEFAULTS.containsKey(arg.substring(0, equals))) {
+                System.err.println("Usage: LoadHarness [name=value ...], where the options and their "
+                    + "defaults are\n  "+DEFAULTS.toString().replace(", ", "\n  ").replaceAll("[{}]", "")
+                    + "\nwarmup and duration are seconds, latency and jitter milliseconds, throttle and "
+                    + "errors the fraction of stub responses that fail, and cacheTtl seconds (0 queries "
+                    + "the stub on every call).");
+                System.exit(arg.equals("help") ? 0 : 1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        int threads = Integer.parseInt(options.get("threads"));
+        long warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("warmup")));
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration")));
+        final int[] weights = parseMix(options.get("mix"));
+
+        final AmazonEC2Adapter adapter = new AmazonEC2Adapter();
+        final AmazonEC2StubServer stub = new AmazonEC2StubServer(Integer.parseInt(options.get("instances")));
+        stub.setLatency(Integer.parseInt(options.get("latency")), Integer.parseInt(options.get("jitter")));
+        stub.start();
+        try {
+            Map<String,String> properties = new HashMap<String,String>();
+            properties.put(AmazonEC2Adapter.Properties.ACCESS_KEY, AmazonEC2StubServer.ACCESS_KEY);
+            properties.put(AmazonEC2Adapter.Properties.SECRET_KEY, AmazonEC2StubServer.SECRET_KEY);
+            properties.put(AmazonEC2Adapter.Properties.ENDPOINT, stub.getEndpoint());
+            properties.put(AmazonEC2Adapter.Properties.HOST, stub.getHost());
+            properties.put(AmazonEC2Adapter.Properties.REGION, "us-east-1");
+            properties.put(AmazonEC2Adapter.Properties.ACTION, "DescribeInstances");
+            properties.put(AmazonEC2Adapter.Properties.API_VERSION, "2016-11-15");
+            properties.put(AmazonEC2Adapter.Properties.MAX_CONNECTIONS, String.valueOf(Math.max(50, threads)));
+            properties.put(AmazonEC2Adapter.Properties.MAX_CONNECTIONS_PER_ROUTE, String.valueOf(Math.max(20, threads)));
+            properties.put(AmazonEC2Adapter.Properties.REQUEST_PAGE_SIZE, options.get("pageSize"));
+            properties.put(AmazonEC2Adapter.Properties.RATE_LIMIT, options.get("rateLimit"));
+            properties.put(AmazonEC2Adapter.Properties.MAX_RETRIES, options.get("maxRetries"));
+            properties.put(AmazonEC2Adapter.Properties.CACHE_TTL, options.get("cacheTtl"));
+            adapter.setProperties(properties);
+            adapter.initialize();
+            // Failures are injected only once the adapter is up, so that a cache is loaded cleanly.
+            stub.setThrottleRate(Double.parseDouble(options.get("throttle")));
+            stub.setErrorRate(Double.parseDouble(options.get("errors")));
+
+            final List<JSONObject> instances = stub.getInstances();
+            System.out.println("Load: "+options);
+            Worker[] workers = run(adapter, instances, weights, threads, warmupMillis);
+            adapter.getMetrics().reset();
+            long requests = stub.getRequests(), throttled = stub.getThrottled(), failed = stub.getFailed();
+            long rejected = stub.getRejected();
+            long start = System.nanoTime();
+            workers = run(adapter, instances, weights, threads, durationMillis);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-9s %9s %9s %9s %9s %9s %9s %9s %7s%n",
+                "operation", "calls", "calls/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms", "errors");
+            for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                Samples samples = new Samples();
+                Map<String,Integer> errors = new TreeMap<String,Integer>();
+                for (Worker worker : workers) {
+                    samples.addAll(worker.samples[operation]);
+                    for (Map.Entry<String,Integer> error : worker.errors[operation].entrySet()) {
+                        Integer total = errors.get(error.getKey());
+                        errors.put(error.getKey(), (total == null ? 0 : total) + error.getValue());
+                    }
+                }
+                int errorCount = 0;
+                for (Integer count : errors.values()) errorCount += count;
+                int calls = samples.size + errorCount;
+                if (calls == 0) continue;
+                samples.sort();
+                System.out.printf("%-9s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %6.2f%%%n",
+                    OPERATIONS[operation], calls, calls / seconds, samples.mean() / 1e6,
+                    samples.percentile(50) / 1e6, samples.percentile(90) / 1e6,
+                    samples.percentile(99) / 1e6, samples.percentile(100) / 1e6,
+                    100.0 * errorCount / calls);
+                if (!errors.isEmpty()) {
+                    System.out.println("          errors: "+errors);
+                }
+            }
+            System.out.println("Stub: requests="+(stub.getRequests() - requests)
+                +" throttled="+(stub.getThrottled() - throttled)+" failed="+(stub.getFailed() - failed)
+                +" rejected="+(stub.getRejected() - rejected));
+            System.out.println("Adapter counters: "+adapter.getMetrics().getCounters());
+            System.out.println("Adapter timers:");
+            for (Map.Entry<String,?> timer : adapter.getMetrics().getTimers().entrySet()) {
+                System.out.println("  "+timer.getKey()+" "+timer.getValue());
+            }
+        } finally {
+            adapter.destroy();
+            stub.stop();
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static Worker[] run(AmazonEC2Adapter adapter, List<JSONObject> instances, int[] weights,
+        int threads, long durationMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + durationMillis;
+        CountDownLatch done = new CountDownLatch(threads);
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(adapter, instances, weights, deadline, new Random(i), done);
+            Thread thread = new Thread(workers[i], "LoadHarness-"+i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        return workers;
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            int operation = Arrays.asList(OPERATIONS).indexOf(parts[0]);
+            if (operation < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry "+entry+"; expected operation:weight "
+                    + "for the operations "+Arrays.toString(OPERATIONS)+".");
+            }
+            weights[operation] = Integer.parseInt(parts[1]);
+        }
+        return weights;
+    }
+
+    /**
+     * Issues calls until the deadline, choosing the operation by weight and the qualification
+     * values from a random instance of the inventory so that queries match realistic result sets.
+     */
+    private static class Worker implements Runnable {
+        private final AmazonEC2Adapter adapter;
+        private final List<JSONObject> instances;
+        private final int[] weights;
+        private final long deadline;
+        private final Random random;
+        private final CountDownLatch done;
+        private final Samples[] samples = new Samples[OPERATIONS.length];
+        @SuppressWarnings("unchecked")
+        private final Map<String,Integer>[] errors = new Map[OPERATIONS.length];
+
+        Worker(AmazonEC2Adapter adapter, List<JSONObject> instances, int[] weights, long deadline,
+            Random random, CountDownLatch done)
+        {
+            this.adapter = adapter;
+            this.instances = instances;
+            this.weights = weights;
+            this.deadline = deadline;
+            this.random = random;
+            this.done = done;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                samples[i] = new Samples();
+                errors[i] = new HashMap<String,Integer>();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                int total = 0;
+                for (int weight : weights) total += weight;
+                while (System.currentTimeMillis() < deadline) {
+                    int pick = random.nextInt(total), operation = 0;
+                    while (pick >= weights[operation]) pick -= weights[operation++];
+                    JSONObject instance = instances.get(random.nextInt(instances.size()));
+                    long start = System.nanoTime();
+                    try {
+                        call(operation, instance);
+                        samples[operation].add(System.nanoTime() - start);
+                    } catch (BridgeError e) {
+                        countError(operation, (e instanceof AmazonEC2Error)
+                            ? ((AmazonEC2Error)e).getCode() : e.getClass().getSimpleName());
+                    } catch (RuntimeException e) {
+                        // Counted like any other error rather than ending the worker
+                        countError(operation, e.getClass().getSimpleName());
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        private void countError(int operation, String key) {
+            Integer count = errors[operation].get(key);
+            errors[operation].put(key, (count == null ? 0 : count) + 1);
+        }
+
+        private void call(int operation, JSONObject instance) throws BridgeError {
+            String state = instance.getJSONObject("instanceState").getString("name");
+            String name = tag(instance, "Name");
+            if (operation == 0) {
+                adapter.count(request(random.nextBoolean()
+                    ? "\"instanceType\"=\""+instance.getString("instanceType")+"\""
+                    : "\"tag:Environment\"=\""+tag(instance, "Environment")+"\" AND \"instanceState\"=\""+state+"\"",
+                    null));
+            } else if (operation == 1) {
+                adapter.retrieve(request("\"instanceId\"=\""+instance.getString("instanceId")+"\"",
+                    "instanceId,instanceType,instanceState,tag:Name"));
+            } else {
+                adapter.search(request(random.nextBoolean()
+                    ? "\"tag:Application\"=\""+tag(instance, "Application")+"\" AND \"instanceState\"=\""+state+"\""
+                    : "\"tag:Name\"^=\""+name.substring(0, name.lastIndexOf('-'))+"\"",
+                    "instanceId,instanceType,placement.availabilityZone,tag:Name"));
+            }
+        }
+
+        private static String tag(JSONObject instance, String key) {
+            Object items = instance.getJSONObject("tagSet").get("item");
+            JSONArray tags = (items instanceof JSONArray) ? (JSONArray)items : new JSONArray().put(items);
+            for (int i = 0; i < tags.length(); i++) {
+                if (key.equals(tags.getJSONObject(i).optString("key"))) {
+                    return tags.getJSONObject(i).optString("value");
+                }
+            }
+            return "";
+        }
+
+        private static BridgeRequest request(String query, String fields) {
+            BridgeRequest request = new BridgeRequest();
+            request.setStructure("Instances");
+            request.setQuery(query);
+            request.setFields(fields == null ? null : Arrays.asList(fields.split(",")));
+            request.setParameters(new HashMap<String,String>());
+            request.setMetadata(new HashMap<String,String>());
+            return request;
+        }
+    }
+
+    /**
+     * A growable array of latency samples in nanoseconds.
+     */
+    private static class Samples {
+        private long[] values = new long[1024];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) add(other.values[i]);
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+        double mean() {
+            long sum = 0;
+            for (int i = 0; i < size; i++) sum += values[i];
+            return size == 0 ? 0 : (double)sum / size;
+        }
+
+        /** Nearest-rank percentile; the samples must be sorted. */
+        long percentile(double percentile) {
+            if (size == 0) return 0;
+            int rank = (int)Math.ceil(percentile / 100 * size);
+            return values[Math.max(0, Math.min(size, rank) - 1)];
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Qualification;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2QueryTranslator;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Evaluates qualifications against parsed instances, as the adapter does for cached instances and
+ * for conditions EC2 cannot filter, and measures compiling a qualification that is not cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QualificationBenchmark {
+
+    @Param({"10", "1000", "10000", "50000"})
+    public int instances;
+
+    @Param({
+        "\"instanceType\"=\"m5.large\"",
+        "\"tag:Name\"^=\"web-prod\"",
+        "\"instanceState\"=\"running\" AND (\"tag:Team\"=\"payments\" OR \"tag:Team\"=\"search\") AND NOT \"tag:Environment\"=\"dev\"",
+        "\"placement.availabilityZone\"$=\"1b\" AND \"tag:Owner\"*=\"@example\""
+    })
+    public String query;
+
+    private List<JSONObject> items;
+    private AmazonEC2QueryTranslator.Translation translation;
+
+    @Setup
+    public void setUp() throws BridgeError {
+        items = DescribeInstancesFixture.parse(DescribeInstancesFixture.generate(instances), null);
+        translation = new AmazonEC2QueryTranslator().translate(query, Collections.<String,String>emptyMap());
+    }
+
+    @Benchmark
+    public int filter() {
+        int matches = 0;
+        for (JSONObject item : items) {
+            if (translation.matchesAll(item)) matches++;
+        }
+        return matches;
+    }
+
+    @Benchmark
+    public AmazonEC2Qualification compile() throws BridgeError {
+        return AmazonEC2Qualification.compile(query);
+    }
+
+}
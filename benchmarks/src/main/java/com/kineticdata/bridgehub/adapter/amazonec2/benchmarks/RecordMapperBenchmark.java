@@ -0,0 +1,61 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2RecordMapper;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Maps parsed instances to bridge records, for a few requested fields, for nested paths and tag
+ * lookups, and for every top level attribute (no fields requested).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RecordMapperBenchmark {
+
+    @Param({"10", "1000", "10000", "50000"})
+    public int instances;
+
+    /** Comma separated fields, or empty to request every attribute. */
+    @Param({
+        "instanceId,instanceType,tag:Name",
+        "instanceId,placement.availabilityZone,tagSet.item.Environment,networkInterfaceSet.item.privateIpAddress,tag:Team",
+        ""
+    })
+    public String fields;
+
+    private List<JSONObject> items;
+    private AmazonEC2RecordMapper mapper;
+
+    @Setup
+    public void setUp() throws BridgeError {
+        items = DescribeInstancesFixture.parse(DescribeInstancesFixture.generate(instances), null);
+        mapper = new AmazonEC2RecordMapper(fields.isEmpty() ? null : Arrays.asList(fields.split(",")));
+    }
+
+    @Benchmark
+    public void map(Blackhole blackhole) {
+        for (JSONObject item : items) {
+            blackhole.consume(mapper.toRecord(item));
+        }
+    }
+
+}
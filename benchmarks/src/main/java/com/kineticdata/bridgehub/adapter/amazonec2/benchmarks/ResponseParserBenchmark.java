@@ -0,0 +1,122 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2ResponseParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.XML;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Streams a DescribeInstances response through the parser: reading every element of each instance,
+ * reading only the elements a typical projection needs, and counting instances without reading
+ * them.  legacyParseAll reads the same response the way the adapter did before the streaming
+ * parser, buffering it into a String and converting the whole document with XML.toJSONObject, as
+ * the baseline the others are compared with; run with -prof gc to compare the allocation per
+ * operation as well as the time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseParserBenchmark {
+
+    @Param({"10", "1000", "10000", "50000"})
+    public int instances;
+
+    private byte[] document;
+    private final Set<String> projection =
+        new HashSet<String>(Arrays.asList("instanceId", "instanceType", "instanceState", "tagSet"));
+
+    @Setup
+    public void setUp() {
+        document = DescribeInstancesFixture.generate(instances);
+    }
+
+    @Benchmark
+    public String parseAll(Blackhole blackhole) throws BridgeError {
+        return parse(null, blackhole);
+    }
+
+    @Benchmark
+    public String parseProjected(Blackhole blackhole) throws BridgeError {
+        return parse(projection, blackhole);
+    }
+
+    @Benchmark
+    public long count() throws BridgeError {
+        AmazonEC2ResponseParser.ItemCounter counter = new AmazonEC2ResponseParser.ItemCounter();
+        AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(new ByteArrayInputStream(document), counter);
+        return counter.getCount();
+    }
+
+    @Benchmark
+    public int legacyParseAll(Blackhole blackhole) throws IOException {
+        String output = EntityUtils.toString(new ByteArrayEntity(document), "UTF-8");
+        JSONObject jsonOutput = XML.toJSONObject(output);
+        JSONObject reservationSet = jsonOutput.getJSONObject("DescribeInstancesResponse")
+            .getJSONObject("reservationSet");
+        JSONArray reservations = items(reservationSet);
+        int instances = 0;
+        for (int i = 0; i < reservations.length(); i++) {
+            JSONArray items = items(reservations.getJSONObject(i).getJSONObject("instancesSet"));
+            for (int j = 0; j < items.length(); j++) {
+                blackhole.consume(items.getJSONObject(j));
+                instances++;
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Returns the item children of the element, which XML.toJSONObject makes an object rather than
+     * an array when there is only one.
+     */
+    private static JSONArray items(JSONObject element) {
+        JSONArray items = element.optJSONArray("item");
+        if (items == null) {
+            items = new JSONArray();
+            JSONObject item = element.optJSONObject("item");
+            if (item != null) items.put(item);
+        }
+        return items;
+    }
+
+    private String parse(final Set<String> elements, final Blackhole blackhole) throws BridgeError {
+        return AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(new ByteArrayInputStream(document),
+            new AmazonEC2ResponseParser.ProjectedItemHandler() {
+                @Override
+                public boolean handle(JSONObject item) {
+                    blackhole.consume(item);
+                    return true;
+                }
+
+                @Override
+                public Set<String> getElements() {
+                    return elements;
+                }
+            });
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Signer;
+import java.util.Date;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the canonical query string of a filtered DescribeInstances request and signs it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SignerBenchmark {
+
+    private final AmazonEC2Signer signer =
+        new AmazonEC2Signer("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+    private SortedMap<String,String> parameters;
+    private String canonicalQueryString;
+
+    @Setup
+    public void setUp() {
+        parameters = new TreeMap<String,String>();
+        parameters.put("Action", "DescribeInstances");
+        parameters.put("Version", "2016-11-15");
+        parameters.put("MaxResults", "1000");
+        parameters.put("Filter.1.Name", "instance-state-name");
+        parameters.put("Filter.1.Value.1", "running");
+        parameters.put("Filter.2.Name", "tag:Name");
+        parameters.put("Filter.2.Value.1", "web-prod-*");
+        parameters.put("NextToken", "eyJ2IjoiMiIsImMiOiJ3T0FzQ1ZxT0JvN2xYbmRhVmJ3a2FaK3ZNM2c9PSJ9");
+        canonicalQueryString = AmazonEC2Signer.canonicalQueryString(parameters);
+    }
+
+    @Benchmark
+    public String canonicalQueryString() {
+        return AmazonEC2Signer.canonicalQueryString(parameters);
+    }
+
+    @Benchmark
+    public AmazonEC2Signer.Signature sign() {
+        return signer.sign("ec2.us-east-1.amazonaws.com", "us-east-1", canonicalQueryString, new Date());
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.kineticdata.bridgehub.adapter.amazonec2.benchmarks;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.BridgeRequest;
+import com.kineticdata.bridgehub.adapter.Record;
+import com.kineticdata.bridgehub.adapter.RecordList;
+import com.kineticdata.bridgehub.adapter.amazonec2.AmazonEC2Adapter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs AmazonEC2Adapter.search() end to end against the stub server.
+ */
+public class AmazonEC2AdapterSearchTest {
+
+    private static final int INSTANCES = 60;
+    private static final List<String> FIELDS = Arrays.asList("instanceId", "launchTime");
+
+    private AmazonEC2StubServer stub;
+    private AmazonEC2Adapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new AmazonEC2StubServer(INSTANCES);
+        stub.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.destroy();
+        }
+        stub.stop();
+    }
+
+    @Test
+    public void test_search_withoutOrder() throws Exception {
+        adapter = adapter(0);
+        RecordList records = adapter.search(request(new HashMap<String,String>()));
+
+        assertEquals(INSTANCES, records.getRecords().size());
+        assertEquals(String.valueOf(INSTANCES), records.getMetadata().get("size"));
+        assertNull(records.getMetadata().get("nextPageToken"));
+        assertEquals(stubInstanceIds(), instanceIds(records));
+    }
+
+    @Test
+    public void test_search_sortedWindow() throws Exception {
+        adapter = adapter(0);
+        assertSortedWindow();
+    }
+
+    @Test
+    public void test_search_sortedWindowFromCache() throws Exception {
+        adapter = adapter(300);
+        assertSortedWindow();
+    }
+
+    @Test
+    public void test_search_pageTokenWalk() throws Exception {
+        adapter = adapter(0);
+        List<String> instanceIds = new ArrayList<String>();
+        String pageToken = null;
+        int pages = 0;
+        do {
+            Map<String,String> metadata = new HashMap<String,String>();
+            metadata.put("pageSize", "7");
+            metadata.put("offset", "0");
+            if (pageToken != null) {
+                metadata.put("pageToken", pageToken);
+            }
+            RecordList records = adapter.search(request(metadata));
+            assertTrue(records.getRecords().size() <= 7);
+            instanceIds.addAll(instanceIds(records));
+            pageToken = records.getMetadata().get("nextPageToken");
+            pages++;
+        } while (pageToken != null && pages <= INSTANCES);
+
+        assertEquals((INSTANCES + 6) / 7, pages);
+        assertEquals(stubInstanceIds(), instanceIds);
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Asserts that the second window of five instances ordered by launch time, latest first, holds
+     * the sixth to tenth latest launch times.
+     */
+    private void assertSortedWindow() throws BridgeError {
+        Map<String,String> metadata = new HashMap<String,String>();
+        metadata.put("order", "<%=field[\"launchTime\"]%>:DESC");
+        metadata.put("pageSize", "5");
+        metadata.put("offset", "5");
+        RecordList records = adapter.search(request(metadata));
+
+        List<String> expected = new ArrayList<String>();
+        for (JSONObject instance : stub.getInstances()) {
+            expected.add(instance.getString("launchTime"));
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        List<String> launchTimes = new ArrayList<String>();
+        for (Record record : records.getRecords()) {
+            launchTimes.add(String.valueOf(record.getValue("launchTime")));
+        }
+        assertEquals(expected.subList(5, 10), launchTimes);
+        assertNotNull(records.getMetadata().get("nextPageToken"));
+    }
+
+    private AmazonEC2Adapter adapter(int cacheTtl) throws BridgeError {
+        Map<String,String> properties = new HashMap<String,String>();
+        properties.put(AmazonEC2Adapter.Properties.ACCESS_KEY, AmazonEC2StubServer.ACCESS_KEY);
+        properties.put(AmazonEC2Adapter.Properties.SECRET_KEY, AmazonEC2StubServer.SECRET_KEY);
+        properties.put(AmazonEC2Adapter.Properties.ENDPOINT, stub.getEndpoint());
+        properties.put(AmazonEC2Adapter.Properties.HOST, stub.getHost());
+        properties.put(AmazonEC2Adapter.Properties.REGION, "us-east-1");
+        properties.put(AmazonEC2Adapter.Properties.ACTION, "DescribeInstances");
+        properties.put(AmazonEC2Adapter.Properties.API_VERSION, "2016-11-15");
+        // Several EC2 pages per search, so page tokens resume within the instances
+        properties.put(AmazonEC2Adapter.Properties.REQUEST_PAGE_SIZE, "10");
+        properties.put(AmazonEC2Adapter.Properties.CACHE_TTL, String.valueOf(cacheTtl));
+        AmazonEC2Adapter result = new AmazonEC2Adapter();
+        result.setProperties(properties);
+        result.initialize();
+        return result;
+    }
+
+    private static BridgeRequest request(Map<String,String> metadata) {
+        BridgeRequest request = new BridgeRequest();
+        request.setStructure("Instances");
+        request.setQuery("\"*\"");
+        request.setFields(FIELDS);
+        request.setParameters(new HashMap<String,String>());
+        request.setMetadata(metadata);
+        return request;
+    }
+
+    private static List<String> instanceIds(RecordList records) {
+        List<String> instanceIds = new ArrayList<String>();
+        for (Record record : records.getRecords()) {
+            instanceIds.add(String.valueOf(record.getValue("instanceId")));
+        }
+        return instanceIds;
+    }
+
+    private List<String> stubInstanceIds() {
+        Set<String> instanceIds = new LinkedHashSet<String>();
+        for (JSONObject instance : stub.getInstances()) {
+            instanceIds.add(instance.getString("instanceId"));
+        }
+        return new ArrayList<String>(instanceIds);
+    }
+
+}
@@ -5,42 +5,29 @@ import com.kineticdata.bridgehub.adapter.BridgeError;
 import com.kineticdata.bridgehub.adapter.BridgeRequest;
 import com.kineticdata.bridgehub.adapter.BridgeUtils;
 import com.kineticdata.bridgehub.adapter.Count;
+import com.kineticdata.bridgehub.adapter.DisposableAdapter;
 import com.kineticdata.bridgehub.adapter.Record;
 import com.kineticdata.bridgehub.adapter.RecordList;
 import com.kineticdata.commons.v1.config.ConfigurableProperty;
 import com.kineticdata.commons.v1.config.ConfigurablePropertyMap;
+import java.io.File;
 import java.io.IOException;
-import java.util.Date;
 import java.util.Map;
-import java.util.TimeZone;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.codec.digest.*;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
-import org.json.XML;
-import org.json.JSONArray;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
 
 
-public class AmazonEC2Adapter implements BridgeAdapter {
+public class AmazonEC2Adapter implements BridgeAdapter, DisposableAdapter {
     /*----------------------------------------------------------------------------------------------
      * PROPERTIES
      *--------------------------------------------------------------------------------------------*/
@@ -74,16 +61,100 @@ public class AmazonEC2Adapter implements BridgeAdapter {
         public static final String REGION = "Region";
         public static final String ACTION = "Action";
         public static final String API_VERSION = "API Version";
+        public static final String MAX_CONNECTIONS = "Max Connections";
+        public static final String MAX_CONNECTIONS_PER_ROUTE = "Max Connections Per Route";
+        public static final String CONNECT_TIMEOUT = "Connect Timeout";
+        public static final String SOCKET_TIMEOUT = "Socket Timeout";
+        public static final String CONNECTION_REQUEST_TIMEOUT = "Connection Request Timeout";
+        public static final String REQUEST_PAGE_SIZE = "Request Page Size";
+        public static final String RATE_LIMIT = "Rate Limit";
+        public static final String RATE_BURST = "Rate Burst";
+        public static final String MAX_RETRIES = "Max Retries";
+        public static final String RETRY_BASE_DELAY = "Retry Base Delay";
+        public static final String RETRY_MAX_DELAY = "Retry Max Delay";
+        public static final String CIRCUIT_BREAKER_THRESHOLD = "Circuit Breaker Threshold";
+        public static final String CIRCUIT_BREAKER_RESET = "Circuit Breaker Reset";
+        public static final String WORKER_THREADS = "Worker Threads";
+        public static final String REGION_TIMEOUT = "Region Timeout";
+        public static final String CACHE_TTL = "Cache TTL";
+        public static final String CACHE_MAX_INSTANCES = "Cache Max Instances";
+        public static final String CACHE_INDEXED_ATTRIBUTES = "Cache Indexed Attributes";
+        public static final String CACHE_DELTA_INTERVAL = "Cache Delta Interval";
+        public static final String CACHE_SNAPSHOT_FILE = "Cache Snapshot File";
+        public static final String RETRIEVE_BATCH_WINDOW = "Retrieve Batch Window";
     }
     
     private final ConfigurablePropertyMap properties = new ConfigurablePropertyMap(
         new ConfigurableProperty(Properties.ACCESS_KEY).setIsRequired(true),
         new ConfigurableProperty(Properties.SECRET_KEY).setIsRequired(true).setIsSensitive(true),
-        new ConfigurableProperty(Properties.ENDPOINT).setIsRequired(true),
-        new ConfigurableProperty(Properties.HOST).setIsRequired(true),
-        new ConfigurableProperty(Properties.REGION).setIsRequired(true),
+        new ConfigurableProperty(Properties.ENDPOINT).setIsRequired(true)
+            .setDescription("May contain {region}; with several regions and no {region}, the default "
+                + "endpoint of each region is used."),
+        new ConfigurableProperty(Properties.HOST).setIsRequired(true)
+            .setDescription("May contain {region}, as for the endpoint."),
+        new ConfigurableProperty(Properties.REGION).setIsRequired(true)
+            .setDescription("Region to query, or a comma separated list of regions to query together."),
         new ConfigurableProperty(Properties.ACTION).setIsRequired(true),
-        new ConfigurableProperty(Properties.API_VERSION).setIsRequired(true)
+        new ConfigurableProperty(Properties.API_VERSION).setIsRequired(true),
+        new ConfigurableProperty(Properties.MAX_CONNECTIONS).setValue("50")
+            .setDescription("Maximum number of pooled HTTP connections to Amazon EC2."),
+        new ConfigurableProperty(Properties.MAX_CONNECTIONS_PER_ROUTE).setValue("20")
+            .setDescription("Maximum number of pooled HTTP connections to a single EC2 endpoint."),
+        new ConfigurableProperty(Properties.CONNECT_TIMEOUT).setValue("10000")
+            .setDescription("Milliseconds to wait while establishing a connection."),
+        new ConfigurableProperty(Properties.SOCKET_TIMEOUT).setValue("60000")
+            .setDescription("Milliseconds to wait for data on an established connection."),
+        new ConfigurableProperty(Properties.CONNECTION_REQUEST_TIMEOUT).setValue("10000")
+            .setDescription("Milliseconds to wait for a connection to become available in the pool."),
+        new ConfigurableProperty(Properties.REQUEST_PAGE_SIZE).setValue("1000")
+            .setDescription("Number of instances requested per DescribeInstances page (5 to 1000)."),
+        new ConfigurableProperty(Properties.RATE_LIMIT).setValue("20")
+            .setDescription("Requests per second sent to Amazon EC2 across all regions. 0 disables "
+                + "rate limiting."),
+        new ConfigurableProperty(Properties.RATE_BURST).setValue("100")
+            .setDescription("Requests that may be sent at once before the rate limit applies."),
+        new ConfigurableProperty(Properties.MAX_RETRIES).setValue("3")
+            .setDescription("Times a throttled request or server error is retried."),
+        new ConfigurableProperty(Properties.RETRY_BASE_DELAY).setValue("100")
+            .setDescription("Milliseconds waited before the first retry; later retries back off "
+                + "exponentially with random jitter."),
+        new ConfigurableProperty(Properties.RETRY_MAX_DELAY).setValue("20000")
+            .setDescription("Longest wait in milliseconds between retries."),
+        new ConfigurableProperty(Properties.CIRCUIT_BREAKER_THRESHOLD).setValue("5")
+            .setDescription("Consecutive failures of a region after which its requests fail "
+                + "immediately."),
+        new ConfigurableProperty(Properties.CIRCUIT_BREAKER_RESET).setValue("30000")
+            .setDescription("Milliseconds before a region whose requests are failing immediately is "
+                + "tried again."),
+        new ConfigurableProperty(Properties.WORKER_THREADS).setValue("8")
+            .setDescription("Number of threads parsing Amazon EC2 responses and filtering their "
+                + "instances, shared by every region. A request holds a thread only while its "
+                + "response body is received and parsed."),
+        new ConfigurableProperty(Properties.REGION_TIMEOUT).setValue("60000")
+            .setDescription("Milliseconds each region has to answer before it is reported as failed "
+                + "and left out of the results."),
+        new ConfigurableProperty(Properties.CACHE_TTL).setValue("0")
+            .setDescription("Seconds a cached snapshot of the instance inventory is served before it "
+                + "is refreshed in the background. 0 disables the cache."),
+        new ConfigurableProperty(Properties.CACHE_MAX_INSTANCES).setValue("100000")
+            .setDescription("Largest inventory that will be cached; larger accounts are always "
+                + "queried directly."),
+        new ConfigurableProperty(Properties.CACHE_INDEXED_ATTRIBUTES)
+            .setValue("region,instanceState,instanceType,availabilityZone,vpcId,subnetId,tag:*")
+            .setDescription("Comma separated qualification keys indexed in the cached inventory "
+                + "(instanceId is always indexed). tag:* indexes every tag."),
+        new ConfigurableProperty(Properties.CACHE_DELTA_INTERVAL).setValue("0")
+            .setDescription("Seconds between polls of instance states that update the cached "
+                + "inventory with launched, changed and removed instances between full refreshes. "
+                + "Other changes, such as tags, appear at the next full refresh. 0 disables polling."),
+        new ConfigurableProperty(Properties.CACHE_SNAPSHOT_FILE)
+            .setDescription("Local file the cached inventory is saved to, and restored from when the "
+                + "adapter starts so requests are answered while the cache is refreshed. Each bridge "
+                + "needs its own file. Empty disables the snapshot."),
+        new ConfigurableProperty(Properties.RETRIEVE_BATCH_WINDOW).setValue("0")
+            .setDescription("Milliseconds a retrieve of a single instance id waits for other "
+                + "retrieves to request together with it, in one request per region. 0 disables "
+                + "batching. Not used while the inventory is cached.")
     );
     
     private String accessKey;
@@ -93,6 +164,12 @@ public class AmazonEC2Adapter implements BridgeAdapter {
     private String region;
     private String action;
     private String apiVersion;
+    private int requestPageSize;
+    private AmazonEC2Regions regions;
+    private AmazonEC2InventoryCache inventoryCache;
+    private Map<String,AmazonEC2RetrieveBatcher> retrieveBatchers;
+    private final AmazonEC2QueryTranslator translator = new AmazonEC2QueryTranslator();
+    private final AmazonEC2Metrics metrics = new AmazonEC2Metrics();
     
     /*---------------------------------------------------------------------------------------------
      * SETUP METHODS
@@ -107,9 +184,109 @@ public class AmazonEC2Adapter implements BridgeAdapter {
         this.region = properties.getValue(Properties.REGION);
         this.action = properties.getValue(Properties.ACTION);
         this.apiVersion = properties.getValue(Properties.API_VERSION);
+        this.requestPageSize = getIntegerProperty(Properties.REQUEST_PAGE_SIZE, AmazonEC2PageIterator.MAX_PAGE_SIZE);
+
+        AmazonEC2Client.Settings settings = new AmazonEC2Client.Settings()
+            .setMaxConnections(getIntegerProperty(Properties.MAX_CONNECTIONS, 50))
+            .setMaxConnectionsPerRoute(getIntegerProperty(Properties.MAX_CONNECTIONS_PER_ROUTE, 20))
+            .setConnectTimeout(getIntegerProperty(Properties.CONNECT_TIMEOUT, 10000))
+            .setSocketTimeout(getIntegerProperty(Properties.SOCKET_TIMEOUT, 60000))
+            .setConnectionRequestTimeout(getIntegerProperty(Properties.CONNECTION_REQUEST_TIMEOUT, 10000))
+            .setRateLimit(getIntegerProperty(Properties.RATE_LIMIT, 20))
+            .setRateBurst(getIntegerProperty(Properties.RATE_BURST, 100))
+            .setMaxRetries(getIntegerProperty(Properties.MAX_RETRIES, 3))
+            .setRetryBaseDelay(getIntegerProperty(Properties.RETRY_BASE_DELAY, 100))
+            .setRetryMaxDelay(getIntegerProperty(Properties.RETRY_MAX_DELAY, 20000))
+            .setCircuitBreakerThreshold(getIntegerProperty(Properties.CIRCUIT_BREAKER_THRESHOLD, 5))
+            .setCircuitBreakerReset(getIntegerProperty(Properties.CIRCUIT_BREAKER_RESET, 30000))
+            .setWorkerThreads(getIntegerProperty(Properties.WORKER_THREADS, 8))
+            .setMetrics(this.metrics);
+
+        List<String> regionNames = AmazonEC2Regions.parseRegions(this.region);
+        if (regionNames.isEmpty()) {
+            throw new BridgeError("The '"+Properties.REGION+"' property must name at least one region.");
+        }
+        String endpointTemplate = this.endpoint;
+        String hostTemplate = this.host;
+        if (regionNames.size() > 1 && !endpointTemplate.contains(AmazonEC2Regions.REGION_PLACEHOLDER)) {
+            endpointTemplate = "https://ec2."+AmazonEC2Regions.REGION_PLACEHOLDER+".amazonaws.com/";
+        }
+        if (regionNames.size() > 1 && !hostTemplate.contains(AmazonEC2Regions.REGION_PLACEHOLDER)) {
+            hostTemplate = "ec2."+AmazonEC2Regions.REGION_PLACEHOLDER+".amazonaws.com";
+        }
+        int regionTimeout = getIntegerProperty(Properties.REGION_TIMEOUT, 60000);
+
+        int cacheTtl = getIntegerProperty(Properties.CACHE_TTL, 0);
+        int cacheMaxInstances = getIntegerProperty(Properties.CACHE_MAX_INSTANCES, 100000);
+        List<String> cacheIndexedKeys = getListProperty(Properties.CACHE_INDEXED_ATTRIBUTES);
+        int cacheDeltaInterval = getIntegerProperty(Properties.CACHE_DELTA_INTERVAL, 0);
+        String cacheSnapshotFile = properties.getValue(Properties.CACHE_SNAPSHOT_FILE);
+        int retrieveBatchWindow = getIntegerProperty(Properties.RETRIEVE_BATCH_WINDOW, 0);
+
+        // Release the transport from any previous initialization before replacing it
+        destroy();
+        String firstRegion = regionNames.get(0);
+        AmazonEC2Client client = new AmazonEC2Client(this.accessKey, this.secretKey,
+            endpointTemplate.replace(AmazonEC2Regions.REGION_PLACEHOLDER, firstRegion),
+            hostTemplate.replace(AmazonEC2Regions.REGION_PLACEHOLDER, firstRegion),
+            firstRegion, this.action, this.apiVersion, settings);
+        this.regions = new AmazonEC2Regions(client, regionNames, endpointTemplate, hostTemplate,
+            regionTimeout);
+        if (cacheTtl > 0) {
+            AmazonEC2InventorySnapshot snapshot = (cacheSnapshotFile == null || cacheSnapshotFile.trim().isEmpty())
+                ? null
+                : new AmazonEC2InventorySnapshot(new File(cacheSnapshotFile.trim()),
+                    this.accessKey+"|"+endpointTemplate+"|"+regionNames);
+            this.inventoryCache = new AmazonEC2InventoryCache(this.regions.getClients(),
+                this.requestPageSize, cacheTtl * 1000L, cacheMaxInstances, cacheIndexedKeys,
+                cacheDeltaInterval * 1000L, regionTimeout, snapshot);
+            this.inventoryCache.restore();
+        } else if (retrieveBatchWindow > 0) {
+            this.retrieveBatchers = new HashMap<String,AmazonEC2RetrieveBatcher>();
+            for (AmazonEC2Client regionClient : this.regions.getClients()) {
+                this.retrieveBatchers.put(regionClient.getRegion(),
+                    new AmazonEC2RetrieveBatcher(regionClient, retrieveBatchWindow, this.metrics));
+            }
+        }
+        this.metrics.register(this.region+"@"+Integer.toHexString(System.identityHashCode(this)));
 //        testAuth();
     }
     
+    @Override
+    public void destroy() {
+        this.metrics.unregister();
+        if (this.inventoryCache != null) {
+            this.inventoryCache.close();
+            this.inventoryCache = null;
+        }
+        if (this.retrieveBatchers != null) {
+            for (AmazonEC2RetrieveBatcher batcher : this.retrieveBatchers.values()) {
+                batcher.close();
+            }
+            this.retrieveBatchers = null;
+        }
+        if (this.regions != null) {
+            this.regions.close();
+            this.regions = null;
+        }
+    }
+    
+    /**
+     * Returns the adapter's latency histograms and counters, which are also exported over JMX.
+     */
+    public AmazonEC2Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reloads the cached inventory snapshot immediately, if caching is enabled.
+     */
+    public void refreshInventory() throws BridgeError {
+        if (this.inventoryCache != null) {
+            this.inventoryCache.refresh();
+        }
+    }
+    
     @Override
     public String getName() {
         return NAME;
@@ -130,397 +307,591 @@ public class AmazonEC2Adapter implements BridgeAdapter {
         return properties;
     }
     
+    private int getIntegerProperty(String name, int defaultValue) throws BridgeError {
+        String value = properties.getValue(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new BridgeError("The '"+name+"' property must be an integer, but was '"+value+"'.", e);
+        }
+    }
+
+    private List<String> getListProperty(String name) {
+        List<String> result = new ArrayList<String>();
+        String value = properties.getValue(name);
+        if (value != null) {
+            for (String item : value.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+    
     /*---------------------------------------------------------------------------------------------
      * IMPLEMENTATION METHODS
      *-------------------------------------------------------------------------------------------*/
 
     @Override
     public Count count(BridgeRequest request) throws BridgeError {
-        String structure = request.getStructure();
-        AmazonEC2QualificationParser parser = new AmazonEC2QualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-        df.setTimeZone(tz);
-        final String amazonDate = df.format(new Date()) + "Z";
-        
-        DateFormat ds = new SimpleDateFormat("yyyyMMdd");
-        ds.setTimeZone(tz);
-        String dateStamp = ds.format(new Date());
-        String canonicalQueryString = String.format("Action=%s&Version=%s", this.action, this.apiVersion);
-        String canonicalHeaders = String.format("host:%s\nx-amz-date:%s\n", this.host, amazonDate);
-        String signedHeaders = "host;x-amz-date";
-        String text = "";
-        String payloadHash = DigestUtils.sha256Hex(text);
-        String canonicalRequest = "GET\n/\n" + canonicalQueryString + "\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
-        String credentialScope = String.format("%s/%s/ec2/aws4_request", dateStamp, this.region);
-        
-        String output = "";
-        
+        long started = System.nanoTime();
         try {
-            byte[] signingKey = getSignatureKey(this.secretKey, dateStamp, this.region, "ec2");
-            String canonicalRequestHash = DigestUtils.sha256Hex(canonicalRequest);
-            String stringToSign = String.format("AWS4-HMAC-SHA256\n%s\n%s\n%s", amazonDate, credentialScope, canonicalRequestHash);
-            Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
-            SecretKeySpec secretkey = new SecretKeySpec(signingKey, "HmacSHA256");
-            sha256_HMAC.init(secretkey);
-            byte[] hash = sha256_HMAC.doFinal(stringToSign.getBytes());
-            String signature = Hex.encodeHexString(hash);
-            String authorizationHeader = String.format("AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=host;x-amz-date, Signature=%s", this.accessKey, credentialScope, signature);
-            String url = String.format("%s?%s", this.endpoint, canonicalQueryString);
-            
-            HttpClient client = new DefaultHttpClient();
-            HttpGet get = new HttpGet(url);
-            get.setHeader("Content-Type", "application/x-www-form-urlencoded");
-            get.setHeader("x-amz-date", amazonDate);
-            get.setHeader("Authorization", authorizationHeader);
-
-            HttpResponse response;
-
-            try {
-                response = client.execute(get);
-                HttpEntity entity = response.getEntity();
-                output = EntityUtils.toString(entity);
-            } 
-            catch (IOException e) {
-                throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
-            }
-        
-        } catch (Exception ex) {
-            throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
-        }
-        
-        JSONObject jsonOutput = XML.toJSONObject(output);
-        JSONObject reservationSet = jsonOutput.getJSONObject("DescribeInstancesResponse").getJSONObject("reservationSet");
-        JSONArray outputArray = reservationSet.optJSONArray("item");
-        // Check for the case where item isn't a JSON Array and has either 0 or 1 objects
-        if (outputArray == null) {
-            outputArray = new JSONArray();
-            JSONObject item = reservationSet.optJSONObject("item");
-            if (item != null) outputArray.put(item);
-        }
-                
-        Pattern pattern = Pattern.compile("([\"\"])(?:(?=(\\\\?))\\2.)*?\\1");
-        Matcher matcher = pattern.matcher(query);
-        
-        // Query is case sensitive
-        while (matcher.find()) {
-            String key = matcher.group();
-            // used to replace the outside quotes from the key value
-            key = key.replaceAll("^\"|\"$", "");
-            if (!key.equals("*")) {
-                // While there is still a value contained within double quotes
-                matcher.find();
-                String value = matcher.group();
-                // used to replace the outside quotes from the value
-                value = value.replaceAll("^\"|\"$", "");
-                
-                // Array to get the index of jsonObject that doesn't match
-                // the query. This will help when we remove from jsonOutput
-                // as elements shift.
-                List<Integer> indices = new ArrayList<Integer>();
-
-                for (int i = 0; i < outputArray.length(); i++) {
-                    if (outputArray.getJSONObject(i).getJSONObject("instancesSet").optJSONObject("item") instanceof JSONObject) {
-                        String rec = outputArray.getJSONObject(i).getJSONObject("instancesSet").getJSONObject("item").getString("instanceId");
-                        if (!value.equals(rec)) {
-                            indices.add(i);
-                        }
-                    } else {
-                        indices.add(i);
-                    }
-                }
+            return AmazonEC2Futures.await(countInstances(request));
+        } finally {
+            metrics.record(AmazonEC2Metrics.Timer.COUNT, started);
+        }
+    }
 
-                Collections.sort(indices, Collections.reverseOrder());
-                for (int i : indices) {
-                    outputArray.remove(i);
-                }
-            }
+    private CompletableFuture<Count> countInstances(BridgeRequest request) throws BridgeError {
+        String structure = request.getStructure();
+        AmazonEC2QueryTranslator.Translation translation =
+            translator.translate(request.getQuery(), request.getParameters());
+
+        // Answer from the snapshot's indexes when there is one
+        AmazonEC2Inventory inventory = (inventoryCache == null) ? null : inventoryCache.get();
+        if (inventory != null) {
+            metrics.increment(AmazonEC2Metrics.Counter.CACHE_HITS);
+            return CompletableFuture.completedFuture(new Count((long)inventory.getIndex().count(translation)));
+        } else if (inventoryCache != null && !translation.hasLocalPredicate()) {
+            // Otherwise the miss is counted by collect()
+            metrics.increment(AmazonEC2Metrics.Counter.CACHE_MISSES);
         }
 
-        Long count;
-        count = Long.valueOf(outputArray.length());
+        // When EC2 applies the whole qualification, every returned instance is a match and the
+        // instances only have to be counted, not read
+        if (!translation.hasLocalPredicate()) {
+            final AmazonEC2QueryTranslator.Translation countTranslation = translation;
+            return regions.invoke(targetClients(translation), client -> countPages(
+                new AmazonEC2PageIterator(client, countTranslation.getParameters(), null, requestPageSize),
+                new AmazonEC2ResponseParser.ItemCounter()))
+                .thenApply(counts -> {
+                    long count = 0;
+                    for (Long regionCount : counts.getResults().values()) {
+                        count += regionCount;
+                    }
+                    return counts.getFailures().isEmpty()
+                        ? new Count(count)
+                        : new Count(count, failureMetadata(counts.getFailures().keySet()));
+                });
+        }
 
-        return new Count(count);
+        // Only the elements the local predicate reads are converted, as nothing else is mapped
+        final MatchCollector collector = new MatchCollector(translation, 0, 0, translation.getLocalElements());
+        return collect(translation, null, this.requestPageSize, collector).thenApply(nextPage -> {
+            recordScan(collector);
+            return collector.getFailedRegions().isEmpty()
+                ? new Count(collector.getMatchCount())
+                : new Count(collector.getMatchCount(), failureMetadata(collector.getFailedRegions()));
+        });
     }
 
     @Override
     public Record retrieve(BridgeRequest request) throws BridgeError {
-        List<String> fields = request.getFields();
+        long started = System.nanoTime();
+        try {
+            return AmazonEC2Futures.await(retrieveInstance(request));
+        } finally {
+            metrics.record(AmazonEC2Metrics.Timer.RETRIEVE, started);
+        }
+    }
+
+    private CompletableFuture<Record> retrieveInstance(BridgeRequest request) throws BridgeError {
+        final List<String> fields = request.getFields();
         String structure = request.getStructure();
-        AmazonEC2QualificationParser parser = new AmazonEC2QualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-        
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-        df.setTimeZone(tz);
-        final String amazonDate = df.format(new Date()) + "Z";
-        
-        DateFormat ds = new SimpleDateFormat("yyyyMMdd");
-        ds.setTimeZone(tz);
-        String dateStamp = ds.format(new Date());
-        String canonicalQueryString = String.format("Action=%s&Version=%s", this.action, this.apiVersion);
-        String canonicalHeaders = String.format("host:%s\nx-amz-date:%s\n", this.host, amazonDate);
-        String signedHeaders = "host;x-amz-date";
-        String text = "";
-        String payloadHash = DigestUtils.sha256Hex(text);
-        String canonicalRequest = "GET\n/\n" + canonicalQueryString + "\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
-        String credentialScope = String.format("%s/%s/ec2/aws4_request", dateStamp, this.region);
-        
-        String output = "";
-        
+        AmazonEC2QueryTranslator.Translation translation =
+            translator.translate(request.getQuery(), request.getParameters());
+
+        final AmazonEC2RecordMapper mapper = new AmazonEC2RecordMapper(fields);
+
+        String batchedId = batchedInstanceId(translation);
+        if (batchedId != null) {
+            return retrieveBatched(translation, batchedId, mapper, fields);
+        }
+
+        // Collect up to two matches, which is enough to tell whether the query was ambiguous
+        final MatchCollector collector = new MatchCollector(translation, 0, 2, itemElements(translation, mapper));
+        return collect(translation, null, this.requestPageSize, collector).thenCompose(nextPage -> {
+            recordScan(collector);
+            return toRecord(collector.getResults(), collector.getFailedRegions(), mapper, fields);
+        });
+    }
+
+    /**
+     * Retrieves the instance through each target region's batcher, which requests it together with
+     * the other instances retrieved at about the same time.
+     */
+    private CompletableFuture<Record> retrieveBatched(AmazonEC2QueryTranslator.Translation translation,
+        final String instanceId, final AmazonEC2RecordMapper mapper, final List<String> fields
+    ) throws BridgeError {
+        final Set<String> elements = itemElements(translation, mapper);
+        return regions.invoke(targetClients(translation),
+            client -> retrieveBatchers.get(client.getRegion()).retrieve(instanceId, elements)
+        ).thenCompose(results -> {
+            List<JSONObject> instances = new ArrayList<JSONObject>();
+            for (JSONObject instance : results.getResults().values()) {
+                if (instance != null) instances.add(instance);
+            }
+            return toRecord(instances, results.getFailures().keySet(), mapper, fields);
+        });
+    }
+
+    @Override
+    public RecordList search(BridgeRequest request) throws BridgeError {
+        long started = System.nanoTime();
         try {
-            byte[] signingKey = getSignatureKey(this.secretKey, dateStamp, this.region, "ec2");
-            String canonicalRequestHash = DigestUtils.sha256Hex(canonicalRequest);
-            String stringToSign = String.format("AWS4-HMAC-SHA256\n%s\n%s\n%s", amazonDate, credentialScope, canonicalRequestHash);
-            Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
-            SecretKeySpec secretkey = new SecretKeySpec(signingKey, "HmacSHA256");
-            sha256_HMAC.init(secretkey);
-            byte[] hash = sha256_HMAC.doFinal(stringToSign.getBytes());
-            String signature = Hex.encodeHexString(hash);
-            String authorizationHeader = String.format("AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=host;x-amz-date, Signature=%s", this.accessKey, credentialScope, signature);
-            String url = String.format("%s?%s", this.endpoint, canonicalQueryString);
-            
-            HttpClient client = new DefaultHttpClient();
-            HttpGet get = new HttpGet(url);
-            get.setHeader("Content-Type", "application/x-www-form-urlencoded");
-            get.setHeader("x-amz-date", amazonDate);
-            get.setHeader("Authorization", authorizationHeader);
-
-            HttpResponse response;
-
-            try {
-                response = client.execute(get);
-                HttpEntity entity = response.getEntity();
-                output = EntityUtils.toString(entity);
-            } 
-            catch (IOException e) {
-                throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
+            return AmazonEC2Futures.await(searchInstances(request));
+        } finally {
+            metrics.record(AmazonEC2Metrics.Timer.SEARCH, started);
+        }
+    }
+
+    private CompletableFuture<RecordList> searchInstances(BridgeRequest request) throws BridgeError {
+        String structure = request.getStructure();
+        final List<String> fields = request.getFields();
+        final Map<String,String> metadata = BridgeUtils.normalizePaginationMetadata(request.getMetadata());
+        AmazonEC2QueryTranslator.Translation translation =
+            translator.translate(request.getQuery(), request.getParameters());
+
+        // A page token from a previous response resumes at its EC2 page rather than re-reading
+        // every page before the offset
+        final int pageSize = getIntegerMetadata(metadata, "pageSize");
+        AmazonEC2PageToken start = AmazonEC2PageToken.decode(request.getMetadata("pageToken"));
+        final int skip = (start == null) ? getIntegerMetadata(metadata, "offset") : start.getSkip();
+        int limit = (pageSize > 0) ? pageSize : Integer.MAX_VALUE;
+        // The order is not kept by normalizePaginationMetadata, so it is read from the request
+        String orderValue = request.getMetadata("order");
+        Map<String,String> orderFields = (orderValue == null || orderValue.trim().isEmpty())
+            ? Collections.<String,String>emptyMap()
+            : BridgeUtils.parseOrder(orderValue);
+        AmazonEC2InstanceOrder order = orderFields.isEmpty() ? null : new AmazonEC2InstanceOrder(orderFields);
+
+        // When everything is filtered by EC2, the first request only needs enough instances to fill
+        // the window (and one more to tell whether there is a following page).  A sorted window
+        // needs every match.
+        int firstPageSize = (pageSize > 0 && !translation.hasLocalPredicate() && order == null)
+            ? skip + pageSize + 1
+            : this.requestPageSize;
+
+        final AmazonEC2RecordMapper mapper = new AmazonEC2RecordMapper(fields);
+        Set<String> elements = itemElements(translation, mapper);
+        if (elements != null && order != null) {
+            elements.addAll(order.getElements());
+        }
+        final MatchCollector collector = new MatchCollector(translation, skip, limit, elements);
+        CompletableFuture<AmazonEC2PageToken> collected;
+        if (order == null) {
+            collected = collect(translation, start, firstPageSize, collector);
+        } else {
+            // Sorted pages are positions in the sorted matches, so every page starts from the
+            // beginning of the instances and only the window is kept
+            collector.setOrder(order);
+            collected = collect(translation, null, firstPageSize, collector).thenApply(ignored ->
+                (pageSize > 0 && collector.getMatchCount() > (long)skip + pageSize)
+                    ? new AmazonEC2PageToken(null, skip + pageSize)
+                    : null);
+        }
+        return collected.thenApply(nextPage -> {
+            recordScan(collector);
+
+            // Only the instances in the window are mapped, and only their requested fields
+            long mapStarted = System.nanoTime();
+            List<Record> records = new ArrayList<Record>(collector.getResults().size());
+            for (JSONObject instance : collector.getResults()) {
+                records.add(mapper.toRecord(instance));
             }
-        
-        } catch (Exception ex) {
-            throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
-        }
-        
-        JSONObject jsonOutput = XML.toJSONObject(output);
-        JSONObject reservationSet = jsonOutput.getJSONObject("DescribeInstancesResponse").getJSONObject("reservationSet");
-        JSONArray outputArray = reservationSet.optJSONArray("item");
-        // Check for the case where item isn't a JSON Array and has either 0 or 1 objects
-        if (outputArray == null) {
-            outputArray = new JSONArray();
-            JSONObject item = reservationSet.optJSONObject("item");
-            if (item != null) outputArray.put(item);
-        }
-        
-        Pattern pattern = Pattern.compile("([\"\"])(?:(?=(\\\\?))\\2.)*?\\1");
-        Matcher matcher = pattern.matcher(query);
-        
-        // Query is case sensitive
-        while (matcher.find()) {
-            String key = matcher.group();
-            // used to replace the outside quotes from the key value
-            key = key.replaceAll("^\"|\"$", "");
-            if (!key.equals("*")) {
-                // While there is still a value contained within double quotes
-                matcher.find();
-                String value = matcher.group();
-                // used to replace the outside quotes from the value
-                value = value.replaceAll("^\"|\"$", "");
-                
-                // Array to get the index of jsonObject that doesn't match
-                // the query. This will help when we remove from jsonOutput
-                // as elements shift.
-                List<Integer> indices = new ArrayList<Integer>();
-
-                for (int i = 0; i < outputArray.length(); i++) {
-                    if (outputArray.getJSONObject(i).getJSONObject("instancesSet").optJSONObject("item") instanceof JSONObject) {
-                        String rec = outputArray.getJSONObject(i).getJSONObject("instancesSet").getJSONObject("item").getString("instanceId");
-                        if (!value.equals(rec)) {
-                            indices.add(i);
-                        }
-                    } else {
-                        indices.add(i);
-                    }
-                }
+            metrics.record(AmazonEC2Metrics.Timer.MAP, mapStarted);
+            metrics.add(AmazonEC2Metrics.Counter.INSTANCES_RETURNED, records.size());
+
+            Map<String,String> responseMetadata = new LinkedHashMap<String,String>(metadata);
+            responseMetadata.put("size", String.valueOf(records.size()));
+            if (nextPage != null) {
+                responseMetadata.put("nextPageToken", nextPage.encode());
+            }
+            responseMetadata.putAll(failureMetadata(collector.getFailedRegions()));
 
-                Collections.sort(indices, Collections.reverseOrder());
-                for (int i : indices) {
-                    outputArray.remove(i);
+            // Returning the response
+            return new RecordList(fields, records, responseMetadata);
+        });
+    }
+    
+    /*---------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *-------------------------------------------------------------------------------------------*/
+    
+    /**
+     * Feeds the instances for the translation to the collector, from the inventory snapshot when
+     * caching is enabled and otherwise from EC2, until the collector is full.  The returned future
+     * completes with the position of the first match after the collected results, or null if there
+     * are none (or it is unknown because the collector only counts).
+     *
+     * @param start where to resume a previous search, or null to start from the beginning
+     * @param firstPageSize the MaxResults of the first EC2 request
+     */
+    private CompletableFuture<AmazonEC2PageToken> collect(final AmazonEC2QueryTranslator.Translation translation,
+        AmazonEC2PageToken start, final int firstPageSize, final MatchCollector collector
+    ) throws BridgeError {
+        // Positions within an EC2 page can only be resumed by EC2
+        if (inventoryCache != null && (start == null || start.getNextToken() == null)) {
+            AmazonEC2Inventory inventory = inventoryCache.get();
+            metrics.increment((inventory != null)
+                ? AmazonEC2Metrics.Counter.CACHE_HITS
+                : AmazonEC2Metrics.Counter.CACHE_MISSES);
+            if (inventory != null) {
+                collector.setFilteredByEc2(false);
+                List<JSONObject> candidates = inventory.getIndex().candidates(translation.getConditions());
+                for (JSONObject instance : candidates) {
+                    if (!collector.handle(instance)) break;
                 }
+                return CompletableFuture.completedFuture(collector.isOverflowed()
+                    ? new AmazonEC2PageToken(null, (int)collector.getMatchCount())
+                    : null);
             }
         }
 
-        Record record;
-        
-        if (outputArray.length() > 1) {
-            throw new BridgeError("Multiple results matched an expected single match query");
-        } else if (outputArray.length() == 0) {
-            record = new Record(null);
-        } else {
-            JSONObject result = outputArray.getJSONObject(0);
-            Map<String,Object> recordMap = new LinkedHashMap<String,Object>();
-            if (fields == null) {
-                record = new Record(null);
-            } else {
-                for (String field: fields) {
-                    recordMap.put(field, result.getJSONObject("instancesSet").getJSONObject("item").getString(field));
+        List<AmazonEC2Client> targets = targetClients(translation);
+        if (targets.size() == 1) {
+            return regions.withTimeout(targets.get(0),
+                collectRegion(targets.get(0), translation, start, firstPageSize, collector));
+        }
+
+        // Each region collects everything up to the end of the window, and the regions' matches are
+        // then merged in region order.  EC2 positions cannot be resumed across several regions, so
+        // following pages start from the first EC2 page of each region again.
+        return regions.invoke(targets, client -> {
+            final MatchCollector regionCollector = collector.forRegion();
+            return collectRegion(client, translation, null, firstPageSize, regionCollector)
+                .thenApply(nextPage -> regionCollector);
+        }).thenApply(results -> {
+            for (MatchCollector regionCollector : results.getResults().values()) {
+                collector.merge(regionCollector);
+            }
+            collector.setFailedRegions(results.getFailures().keySet());
+            return collector.isOverflowed()
+                ? new AmazonEC2PageToken(null, (int)collector.getMatchCount())
+                : null;
+        });
+    }
+
+    /**
+     * Feeds the instances for the translation in one region to the collector, page by page, until
+     * the collector is full.
+     */
+    private CompletableFuture<AmazonEC2PageToken> collectRegion(AmazonEC2Client client,
+        AmazonEC2QueryTranslator.Translation translation, AmazonEC2PageToken start, int firstPageSize,
+        MatchCollector collector
+    ) {
+        return collectPages(new AmazonEC2PageIterator(client, translation.getParameters(),
+            (start == null) ? null : start.getNextToken(), firstPageSize), collector);
+    }
+
+    /**
+     * Requests the next page once the previous one has been handled, until the collector is full
+     * or there are no more pages.
+     */
+    private CompletableFuture<AmazonEC2PageToken> collectPages(final AmazonEC2PageIterator pages,
+        final MatchCollector collector
+    ) {
+        if (!pages.hasNext()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return pages.nextAsync(collector).thenCompose(page -> {
+            pages.setPageSize(this.requestPageSize);
+            AmazonEC2PageToken nextPage = null;
+            if (collector.isOverflowed()) {
+                nextPage = new AmazonEC2PageToken(page.getRequestToken(), collector.getPageMatchCount());
+            } else if (collector.isFull() && pages.hasNext()) {
+                nextPage = new AmazonEC2PageToken(page.getNextToken(), 0);
+            }
+            collector.startPage();
+            return (nextPage != null)
+                ? CompletableFuture.completedFuture(nextPage)
+                : collectPages(pages, collector);
+        });
+    }
+
+    /**
+     * Counts the instances of every page without reading them.
+     */
+    private static CompletableFuture<Long> countPages(final AmazonEC2PageIterator pages,
+        final AmazonEC2ResponseParser.ItemCounter counter
+    ) {
+        if (!pages.hasNext()) {
+            return CompletableFuture.completedFuture(counter.getCount());
+        }
+        return pages.nextAsync(counter).thenCompose(page -> countPages(pages, counter));
+    }
+
+    /**
+     * Returns the instance id a retrieve is for, if it can be batched: batching is enabled and the
+     * qualification is nothing but an equality comparison of instanceId with a well formed id.
+     * Otherwise returns null.
+     */
+    private String batchedInstanceId(AmazonEC2QueryTranslator.Translation translation) {
+        if (retrieveBatchers == null || !translation.isConditionsOnly()
+            || translation.getConditions().size() != 1
+        ) {
+            return null;
+        }
+        AmazonEC2Qualification.Comparison condition = translation.getConditions().get(0);
+        return (AmazonEC2QueryTranslator.INSTANCE_ID.equals(condition.getKey())
+            && AmazonEC2RetrieveBatcher.isInstanceId(condition.getValue()))
+            ? condition.getValue()
+            : null;
+    }
+
+    /**
+     * Maps the single instance a retrieve matched to its record, failing if several matched.
+     */
+    private CompletableFuture<Record> toRecord(List<JSONObject> results,
+        Collection<String> failedRegions, AmazonEC2RecordMapper mapper, List<String> fields
+    ) {
+        if (results.size() > 1) {
+            return AmazonEC2Futures.<Record>failed(
+                new BridgeError("Multiple results matched an expected single match query"));
+        }
+        JSONObject result = results.isEmpty() ? null : results.get(0);
+
+        long mapStarted = System.nanoTime();
+        Record record = (result == null || fields == null) ? new Record(null) : mapper.toRecord(result);
+        metrics.record(AmazonEC2Metrics.Timer.MAP, mapStarted);
+        metrics.add(AmazonEC2Metrics.Counter.INSTANCES_RETURNED, (result == null) ? 0 : 1);
+        if (!failedRegions.isEmpty()) {
+            record.setMetadata(failureMetadata(failedRegions));
+        }
+        return CompletableFuture.completedFuture(record);
+    }
+
+    /**
+     * Returns the clients of the regions the translation can match instances in: every region,
+     * unless the qualification requires a specific region.
+     */
+    private List<AmazonEC2Client> targetClients(AmazonEC2QueryTranslator.Translation translation) {
+        List<AmazonEC2Client> targets = new ArrayList<AmazonEC2Client>(regions.getClients());
+        for (AmazonEC2Qualification.Comparison condition : translation.getConditions()) {
+            if (AmazonEC2Client.REGION.equals(condition.getKey())) {
+                for (Iterator<AmazonEC2Client> iterator = targets.iterator(); iterator.hasNext(); ) {
+                    if (!iterator.next().getRegion().equals(condition.getValue())) iterator.remove();
                 }
-                record = new Record(recordMap);
             }
         }
-        
-        // Retrieve fields that are contained in a json string
-        record = BridgeUtils.getNestedFields(request.getFields(),Arrays.asList(record)).get(0);
-        
-        return record;
+        return targets;
     }
 
-    @Override
-    public RecordList search(BridgeRequest request) throws BridgeError {
-        String structure = request.getStructure();
-        List<String> fields = request.getFields();
-        Map<String,String> metadata = BridgeUtils.normalizePaginationMetadata(request.getMetadata());
-        AmazonEC2QualificationParser parser = new AmazonEC2QualificationParser();
-        String query = parser.parse(request.getQuery(),request.getParameters());
-        
-        TimeZone tz = TimeZone.getTimeZone("UTC");
-        DateFormat df = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-        df.setTimeZone(tz);
-        final String amazonDate = df.format(new Date()) + "Z";
-        
-        DateFormat ds = new SimpleDateFormat("yyyyMMdd");
-        ds.setTimeZone(tz);
-        String dateStamp = ds.format(new Date());
-        String canonicalQueryString = String.format("Action=%s&Version=%s", this.action, this.apiVersion);
-        String canonicalHeaders = String.format("host:%s\nx-amz-date:%s\n", this.host, amazonDate);
-        String signedHeaders = "host;x-amz-date";
-        String text = "";
-        String payloadHash = DigestUtils.sha256Hex(text);
-        String canonicalRequest = "GET\n/\n" + canonicalQueryString + "\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
-        String credentialScope = String.format("%s/%s/ec2/aws4_request", dateStamp, this.region);
-        
-        String output = "";
-        
-        try {
-            byte[] signingKey = getSignatureKey(this.secretKey, dateStamp, this.region, "ec2");
-            String canonicalRequestHash = DigestUtils.sha256Hex(canonicalRequest);
-            String stringToSign = String.format("AWS4-HMAC-SHA256\n%s\n%s\n%s", amazonDate, credentialScope, canonicalRequestHash);
-            Mac sha256_HMAC = Mac.getInstance("HmacSHA256");
-            SecretKeySpec secretkey = new SecretKeySpec(signingKey, "HmacSHA256");
-            sha256_HMAC.init(secretkey);
-            byte[] hash = sha256_HMAC.doFinal(stringToSign.getBytes());
-            String signature = Hex.encodeHexString(hash);
-            String authorizationHeader = String.format("AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=host;x-amz-date, Signature=%s", this.accessKey, credentialScope, signature);
-            String url = String.format("%s?%s", this.endpoint, canonicalQueryString);
-            
-            HttpClient client = new DefaultHttpClient();
-            HttpGet get = new HttpGet(url);
-            get.setHeader("Content-Type", "application/x-www-form-urlencoded");
-            get.setHeader("x-amz-date", amazonDate);
-            get.setHeader("Authorization", authorizationHeader);
-
-            HttpResponse response;
-
-            try {
-                response = client.execute(get);
-                HttpEntity entity = response.getEntity();
-                output = EntityUtils.toString(entity);
-            } 
-            catch (IOException e) {
-                throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
+    /**
+     * Returns the top level elements of the instance items that have to be read from EC2: those
+     * that are mapped or checked locally, or null for all of them.
+     */
+    private static Set<String> itemElements(AmazonEC2QueryTranslator.Translation translation,
+        AmazonEC2RecordMapper mapper
+    ) {
+        Set<String> mapped = mapper.getElements();
+        if (mapped == null) {
+            return null;
+        }
+        Set<String> elements = new HashSet<String>(mapped);
+        elements.addAll(translation.getLocalElements());
+        return elements;
+    }
+
+    /**
+     * Records how many instances the collector examined and how long it spent filtering them.
+     */
+    private void recordScan(MatchCollector collector) {
+        metrics.add(AmazonEC2Metrics.Counter.INSTANCES_SCANNED, collector.scanned);
+        metrics.recordNanos(AmazonEC2Metrics.Timer.FILTER, collector.filterNanos);
+    }
+
+    private static Map<String,String> failureMetadata(Collection<String> failedRegions) {
+        Map<String,String> metadata = new LinkedHashMap<String,String>();
+        if (!failedRegions.isEmpty()) {
+            StringBuilder regions = new StringBuilder();
+            for (String region : failedRegions) {
+                if (regions.length() > 0) regions.append(",");
+                regions.append(region);
             }
-        
-        } catch (Exception ex) {
-            throw new BridgeError("Unable to make a connection to properly execute the query to Amazon EC2");
-        }
-        
-        JSONObject jsonOutput = XML.toJSONObject(output);
-        JSONObject reservationSet = jsonOutput.getJSONObject("DescribeInstancesResponse").getJSONObject("reservationSet");
-        JSONArray outputArray = reservationSet.optJSONArray("item");
-        // Check for the case where item isn't a JSON Array and has either 0 or 1 objects
-        if (outputArray == null) {
-            outputArray = new JSONArray();
-            JSONObject item = reservationSet.optJSONObject("item");
-            if (item != null) outputArray.put(item);
-        }
-        
-        Pattern pattern = Pattern.compile("([\"\"])(?:(?=(\\\\?))\\2.)*?\\1");
-        Matcher matcher = pattern.matcher(query);
-        
-        // Query is case sensitive
-        while (matcher.find()) {
-            String key = matcher.group();
-            // used to replace the outside quotes from the key value
-            key = key.replaceAll("^\"|\"$", "");
-            if (!key.equals("*")) {
-                // While there is still a value contained within double quotes
-                matcher.find();
-                String value = matcher.group();
-                // used to replace the outside quotes from the value
-                value = value.replaceAll("^\"|\"$", "");
-                
-                // Array to get the index of jsonObject that doesn't match
-                // the query. This will help when we remove from jsonOutput
-                // as elements shift.
-                List<Integer> indices = new ArrayList<Integer>();
-
-                for (int i = 0; i < outputArray.length(); i++) {
-                    if (outputArray.getJSONObject(i).getJSONObject("instancesSet").optJSONObject("item") instanceof JSONObject) {
-                        String rec = outputArray.getJSONObject(i).getJSONObject("instancesSet").getJSONObject("item").getString(key);
-                        if (!value.equals(rec)) {
-                            indices.add(i);
-                        }
-                    } else {
-                        indices.add(i);
-                    }
-                }
+            metadata.put("failedRegions", regions.toString());
+        }
+        return metadata;
+    }
+    
+    /**
+     * Streams instances matching the locally evaluated conditions into a window of results,
+     * skipping the first matches and stopping the response once a match beyond the window is seen.
+     * When the results are ordered, every match is examined and the collector keeps only those up
+     * to the end of the window, in order.
+     */
+    private static class MatchCollector implements AmazonEC2ResponseParser.ProjectedItemHandler {
+        private final AmazonEC2QueryTranslator.Translation translation;
+        private final int limit;
+        private final Set<String> elements;
+        private final List<JSONObject> results = new ArrayList<JSONObject>();
+        private int skip;
+        private long matchCount = 0;
+        private int pageMatchCount = 0;
+        private boolean overflowed = false;
+        private boolean filteredByEc2 = true;
+        private Collection<String> failedRegions = Collections.emptyList();
+        private AmazonEC2InstanceOrder order;
+        private AmazonEC2InstanceOrder.Selection selection;
+        private List<JSONObject> ordered;
+        /** The instances examined and the time spent checking them, including merged regions. */
+        private long scanned = 0;
+        private long filterNanos = 0;
 
-                Collections.sort(indices, Collections.reverseOrder());
-                for (int i : indices) {
-                    outputArray.remove(i);
-                }
+        /**
+         * @param limit the maximum number of results to keep, or 0 to only count matches
+         * @param elements the item elements to read from EC2 responses, or null for all of them
+         */
+        private MatchCollector(AmazonEC2QueryTranslator.Translation translation, int skip, int limit,
+            Set<String> elements
+        ) {
+            this.translation = translation;
+            this.skip = skip;
+            this.limit = limit;
+            this.elements = elements;
+        }
+
+        /**
+         * Returns a collector for a single region's instances that keeps every match up to the end
+         * of this collector's window, to be merged into this collector.
+         */
+        private MatchCollector forRegion() {
+            long end = (limit == 0) ? 0 : Math.min((long)skip + limit, Integer.MAX_VALUE);
+            MatchCollector region = new MatchCollector(translation, 0, (int)end, elements);
+            if (order != null) {
+                region.setOrder(order);
             }
+            return region;
         }
 
-        List<Record> records = new ArrayList<Record>();
-        
-        for (int i=0; i < outputArray.length(); i++) {
-            Map<String,Object> map = new HashMap<String,Object>();
-            if (outputArray.getJSONObject(i).getJSONObject("instancesSet").optJSONObject("item") instanceof JSONObject) {
-                JSONObject recordObject = (JSONObject)outputArray.getJSONObject(i).getJSONObject("instancesSet").getJSONObject("item");
-                Iterator<String> keysItr = recordObject.keys();
-                while(keysItr.hasNext()) {
-                    String key = keysItr.next();
-                    Object value = recordObject.get(key);
-                    if (value instanceof org.json.JSONObject) value = value.toString();
-                    map.put(key, value);
-                }
+        /**
+         * Adds the matches of a region collector, as if they had been handled by this one.
+         */
+        private void merge(MatchCollector region) {
+            scanned += region.scanned;
+            filterNanos += region.filterNanos;
+            if (limit == 0) {
+                matchCount += region.matchCount;
+                return;
+            }
+            if (selection != null) {
+                selection.addAll(region.selection);
+                matchCount += region.matchCount;
+                return;
+            }
+            for (JSONObject instance : region.results) {
+                if (!accept(instance)) return;
+            }
+            overflowed = overflowed || region.overflowed;
+        }
+
+        @Override
+        public Set<String> getElements() {
+            return elements;
+        }
+
+        @Override
+        public boolean handle(JSONObject instance) {
+            scanned++;
+            long started = System.nanoTime();
+            boolean matches = filteredByEc2 ? translation.matches(instance) : translation.matchesAll(instance);
+            filterNanos += System.nanoTime() - started;
+            return !matches || accept(instance);
+        }
+
+        private boolean accept(JSONObject instance) {
+            if (selection != null) {
+                matchCount++;
+                selection.offer(instance);
+                return true;
+            }
+            if (limit > 0 && skip == 0 && results.size() == limit) {
+                overflowed = true;
+                return false;
+            }
+            matchCount++;
+            pageMatchCount++;
+            if (skip > 0) {
+                skip--;
+            } else if (limit > 0) {
+                results.add(instance);
+            }
+            return true;
+        }
+
+        /**
+         * Sets whether instances have already been filtered by the pushed down parameters, or if
+         * every condition has to be checked (as for cached instances).
+         */
+        private void setFilteredByEc2(boolean filteredByEc2) {
+            this.filteredByEc2 = filteredByEc2;
+        }
+
+        /**
+         * Keeps the first matches up to the end of the window in the given order, rather than the
+         * matches in the window in the order they are handled.
+         */
+        private void setOrder(AmazonEC2InstanceOrder order) {
+            long end = (limit == 0) ? 0 : Math.min((long)skip + limit, Integer.MAX_VALUE);
+            this.order = order;
+            this.selection = order.select((int)end);
+        }
+
+        private void setFailedRegions(Collection<String> failedRegions) {
+            this.failedRegions = failedRegions;
+        }
+
+        /** The regions whose instances are missing because they could not be queried. */
+        private Collection<String> getFailedRegions() {
+            return failedRegions;
+        }
+
+        /** Resets the per page match count before the next page is fetched. */
+        private void startPage() {
+            pageMatchCount = 0;
+        }
+
+        private List<JSONObject> getResults() {
+            if (selection != null && ordered == null) {
+                List<JSONObject> kept = selection.getInstances();
+                ordered = kept.subList(Math.min(skip, kept.size()), kept.size());
             }
-            records.add(new Record(map));
+            return (selection != null) ? ordered : results;
+        }
+
+        private long getMatchCount() {
+            return matchCount;
         }
-        
-        // Retrieve fields from a json string
-        records = BridgeUtils.getNestedFields(request.getFields(), records);
 
-        // Returning the response
-        return new RecordList(fields, records, metadata);
+        /** Number of matches consumed (skipped or kept) from the current page. */
+        private int getPageMatchCount() {
+            return pageMatchCount;
+        }
+
+        private boolean isFull() {
+            return limit > 0 && results.size() == limit;
+        }
+
+        /** Whether a match beyond the window was seen on the current page. */
+        private boolean isOverflowed() {
+            return overflowed;
+        }
     }
     
-    static byte[] HmacSHA256(String data, byte[] key) throws Exception  {
-        String algorithm="HmacSHA256";
-        Mac mac = Mac.getInstance(algorithm);
-        mac.init(new SecretKeySpec(key, algorithm));
-        return mac.doFinal(data.getBytes("UTF8"));
+    private static int getIntegerMetadata(Map<String,String> metadata, String name) throws BridgeError {
+        String value = metadata.get(name);
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new BridgeError("The '"+name+"' metadata value must be an integer, but was '"+value+"'.", e);
+        }
     }
 
-    static byte[] getSignatureKey(String key, String dateStamp, String regionName, String serviceName) throws Exception  {
-         byte[] kSecret = ("AWS4" + key).getBytes("UTF8");
-         byte[] kDate    = HmacSHA256(dateStamp, kSecret);
-         byte[] kRegion  = HmacSHA256(regionName, kDate);
-         byte[] kService = HmacSHA256(serviceName, kRegion);
-         byte[] kSigning = HmacSHA256("aws4_request", kService);
-         return kSigning;
-    }
- 
-}
\ No newline at end of file
+}
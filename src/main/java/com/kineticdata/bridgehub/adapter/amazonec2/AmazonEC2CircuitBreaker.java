@@ -0,0 +1,89 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+
+/**
+ * Stops sending requests to an endpoint that keeps failing.
+ *
+ * After a number of consecutive failures (server errors or failed connections) the breaker opens
+ * and requests fail immediately instead of waiting on the endpoint.  Once the reset period has
+ * passed a single trial request is let through: if it succeeds the breaker closes, otherwise it
+ * opens for another period.  Requests the endpoint rejects for their own sake (client errors and
+ * throttling) show that it is up, so they count as successes.
+ */
+public class AmazonEC2CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long resetMillis;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt;
+
+    /**
+     * @param name the endpoint named in the error thrown while the breaker is open
+     */
+    public AmazonEC2CircuitBreaker(String name, int failureThreshold, long resetMillis) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.resetMillis = resetMillis;
+    }
+
+    /**
+     * Throws if a request may not be sent now.  A request that is allowed must be followed by a
+     * call to onSuccess(), onFailure() or, if it was abandoned before it completed, onCancel().
+     */
+    public synchronized void acquire() throws BridgeError {
+        if (state == State.CLOSED) {
+            return;
+        }
+        long remaining = openedAt + resetMillis - System.currentTimeMillis();
+        if (state == State.OPEN && remaining <= 0) {
+            state = State.HALF_OPEN;
+            return;
+        }
+        throw new BridgeError("Requests to Amazon EC2 "+name+" are suspended after "+failures
+            +" consecutive failures"+(remaining > 0 ? "; retrying in "+remaining+" ms." : "."));
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            if (state != State.OPEN) {
+                AmazonEC2Adapter.logger.warn("Suspending requests to Amazon EC2 "+name+" for "
+                    +resetMillis+" ms after "+failures+" consecutive failures.");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Lets another trial request through if the abandoned request was the trial.
+     */
+    public synchronized void onCancel() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public long getResetMillis() {
+        return resetMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,686 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONObject;
+
+/**
+ * Issues signed EC2 Query API requests over a pooled, keep-alive, non-blocking HTTP transport.
+ *
+ * A single instance is created by the adapter at initialization and shared by every bridge call,
+ * so connections (and their TLS sessions) to the EC2 endpoint are reused rather than re-established
+ * per request.  Clients for further regions are derived from it with forRegion() and share its
+ * connection pool and credentials.  The client must be closed when the adapter is destroyed.
+ *
+ * Requests return futures and hold no thread while they are in flight: a few I/O threads serve
+ * every connection, each response body is parsed on a small pool of worker threads as it streams
+ * in (through a fixed buffer, so a large page is never held in memory whole), and retries and
+ * rate limited requests wait on a scheduler rather than sleeping.  The number of requests in flight
+ * is bounded by the connection pool, not by the threads of the callers.
+ *
+ * Concurrent identical requests, to the same endpoint with the same parameters and reading the
+ * same item elements, are coalesced into one request whose items are shared by every caller.
+ *
+ * Every request of the adapter, whatever its region, passes through one rate limiter.  Throttled
+ * requests and server errors are retried with exponential backoff and decorrelated jitter, and
+ * each region has a circuit breaker that fails requests immediately while its endpoint is down.
+ */
+public class AmazonEC2Client {
+
+    /** The attribute added to each item naming the region it is in. */
+    public static final String REGION = "region";
+
+    public static final String DESCRIBE_INSTANCE_STATUS = "DescribeInstanceStatus";
+
+    /** Upper bound on how long an idle pooled connection is kept before it is re-established. */
+    private static final long MAX_KEEP_ALIVE_MILLIS = 60000L;
+    /** The most of a response body held at once, waiting for the parser to read it. */
+    private static final int BODY_BUFFER_SIZE = 32 * 1024;
+    /** How often expired and idle connections are closed. */
+    private static final long EVICTION_INTERVAL_MILLIS = 10000L;
+
+    private final AmazonEC2Signer signer;
+    private final String endpoint;
+    private final String host;
+    private final String region;
+    private final String action;
+    private final String apiVersion;
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient httpClient;
+    /** Parses responses and runs the stages that depend on them, off the I/O threads. */
+    private final ExecutorService workers;
+    /** Runs delayed work: retries, rate limited requests, timeouts and connection eviction. */
+    private final ScheduledThreadPoolExecutor scheduler;
+    /** The requests in flight, which are failed if the client is closed before they complete. */
+    private final Set<CompletableFuture<String>> pending;
+    private final AmazonEC2Metrics metrics;
+    private final AmazonEC2RequestCoalescer coalescer;
+    private final AmazonEC2RateLimiter rateLimiter;
+    private final AmazonEC2CircuitBreaker circuitBreaker;
+    private final int maxRetries;
+    private final long retryBaseDelay;
+    private final long retryMaxDelay;
+    private final Random random = new Random();
+    /** Whether this client created the connection pool, rather than sharing another client's. */
+    private final boolean ownsTransport;
+
+    public AmazonEC2Client(String accessKey, String secretKey, String endpoint, String host,
+        String region, String action, String apiVersion, Settings settings
+    ) throws BridgeError {
+        this.signer = new AmazonEC2Signer(accessKey, secretKey);
+        this.endpoint = endpoint;
+        this.host = host;
+        this.region = region;
+        this.action = action;
+        this.apiVersion = apiVersion;
+
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+            .setConnectTimeout(settings.connectTimeout)
+            .setSoTimeout(settings.socketTimeout)
+            .build();
+        try {
+            this.connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig, daemonThreads("AmazonEC2IO")));
+        } catch (IOReactorException e) {
+            throw new BridgeError("Unable to start the Amazon EC2 HTTP client.", e);
+        }
+        this.connectionManager.setMaxTotal(settings.maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(settings.maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(settings.connectTimeout)
+            .setSocketTimeout(settings.socketTimeout)
+            .setConnectionRequestTimeout(settings.connectionRequestTimeout)
+            .build();
+
+        this.httpClient = HttpAsyncClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy(new BoundedKeepAliveStrategy())
+            .setThreadFactory(daemonThreads("AmazonEC2Reactor"))
+            .build();
+        this.httpClient.start();
+
+        ThreadPoolExecutor workerPool = new ThreadPoolExecutor(settings.workerThreads,
+            settings.workerThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            daemonThreads("AmazonEC2Worker"));
+        workerPool.allowCoreThreadTimeOut(true);
+        this.workers = workerPool;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("AmazonEC2Scheduler"));
+        // Most timeouts are cancelled long before they are due
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(MAX_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        }, EVICTION_INTERVAL_MILLIS, EVICTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.pending = Collections.newSetFromMap(new ConcurrentHashMap<CompletableFuture<String>,Boolean>());
+
+        this.metrics = settings.metrics;
+        this.coalescer = new AmazonEC2RequestCoalescer(metrics);
+        this.rateLimiter = (settings.rateLimit > 0)
+            ? new AmazonEC2RateLimiter(settings.rateLimit, settings.rateBurst)
+            : null;
+        this.circuitBreaker = new AmazonEC2CircuitBreaker(region, settings.circuitBreakerThreshold,
+            settings.circuitBreakerReset);
+        this.maxRetries = settings.maxRetries;
+        this.retryBaseDelay = settings.retryBaseDelay;
+        this.retryMaxDelay = settings.retryMaxDelay;
+        this.ownsTransport = true;
+    }
+
+    private AmazonEC2Client(AmazonEC2Client transport, String endpoint, String host, String region) {
+        this.signer = transport.signer;
+        this.endpoint = endpoint;
+        this.host = host;
+        this.region = region;
+        this.action = transport.action;
+        this.apiVersion = transport.apiVersion;
+        this.connectionManager = transport.connectionManager;
+        this.httpClient = transport.httpClient;
+        this.workers = transport.workers;
+        this.scheduler = transport.scheduler;
+        this.pending = transport.pending;
+        this.metrics = transport.metrics;
+        this.coalescer = transport.coalescer;
+        this.rateLimiter = transport.rateLimiter;
+        this.circuitBreaker = new AmazonEC2CircuitBreaker(region,
+            transport.circuitBreaker.getFailureThreshold(), transport.circuitBreaker.getResetMillis());
+        this.maxRetries = transport.maxRetries;
+        this.retryBaseDelay = transport.retryBaseDelay;
+        this.retryMaxDelay = transport.retryMaxDelay;
+        this.ownsTransport = false;
+    }
+
+    /**
+     * Returns a client for another region that shares this client's connection pool, threads and
+     * credentials.  Closing the returned client does not close them.
+     */
+    public AmazonEC2Client forRegion(String region, String endpoint, String host) {
+        return new AmazonEC2Client(this, endpoint, host, region);
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * Executes the configured action with the given request parameters against the EC2 endpoint,
+     * passing each item of the response to the handler, and returns the response nextToken.  Each
+     * item is given a REGION attribute naming the client's region.
+     */
+    public String describeInstances(SortedMap<String,String> parameters,
+        AmazonEC2ResponseParser parser, AmazonEC2ResponseParser.ItemHandler handler
+    ) throws BridgeError {
+        return AmazonEC2Futures.await(describeInstancesAsync(parameters, parser, handler));
+    }
+
+    /**
+     * Starts describeInstances without waiting for it.  The items are passed to the handler on the
+     * thread that completes the returned future, before it completes.
+     */
+    public CompletableFuture<String> describeInstancesAsync(SortedMap<String,String> parameters,
+        AmazonEC2ResponseParser parser, AmazonEC2ResponseParser.ItemHandler handler
+    ) {
+        return request(action, parameters, parser, handler);
+    }
+
+    /**
+     * Executes DescribeInstanceStatus with the given request parameters, passing the status of
+     * each instance to the handler, and returns the response nextToken.  Each status is given a
+     * REGION attribute as instances are.
+     */
+    public String describeInstanceStatus(SortedMap<String,String> parameters,
+        AmazonEC2ResponseParser.ItemHandler handler
+    ) throws BridgeError {
+        return AmazonEC2Futures.await(describeInstanceStatusAsync(parameters, handler));
+    }
+
+    /**
+     * Starts describeInstanceStatus without waiting for it, as describeInstancesAsync does.
+     */
+    public CompletableFuture<String> describeInstanceStatusAsync(SortedMap<String,String> parameters,
+        AmazonEC2ResponseParser.ItemHandler handler
+    ) {
+        return request(DESCRIBE_INSTANCE_STATUS, parameters,
+            AmazonEC2ResponseParser.DESCRIBE_INSTANCE_STATUS, handler);
+    }
+
+    /**
+     * Shuts down the connection pool and the client's threads, if this client owns them, failing
+     * any request still in flight.
+     */
+    public void close() {
+        if (!ownsTransport) {
+            return;
+        }
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            AmazonEC2Adapter.logger.warn("Unable to cleanly close the Amazon EC2 HTTP client.", e);
+        } finally {
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            for (CompletableFuture<String> request : pending) {
+                request.completeExceptionally(closedError());
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Runs the task on the client's scheduler after the delay.
+     *
+     * @throws RejectedExecutionException if the client has been closed
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * Sends a request for the action, sharing it with any identical request already in flight.
+     */
+    private CompletableFuture<String> request(String action, SortedMap<String,String> parameters,
+        final AmazonEC2ResponseParser parser, AmazonEC2ResponseParser.ItemHandler handler
+    ) {
+        SortedMap<String,String> query = new TreeMap<String,String>(parameters);
+        query.put("Action", action);
+        query.put("Version", apiVersion);
+        final String canonicalQueryString = AmazonEC2Signer.canonicalQueryString(query);
+        return coalescer.execute(endpoint+"?"+canonicalQueryString, handler,
+            shared -> execute(canonicalQueryString, parser,
+                (shared instanceof AmazonEC2ResponseParser.ItemCounter)
+                    ? shared
+                    : new RegionItemHandler(region, shared)));
+    }
+
+    /**
+     * Sends the request once the rate limiter and circuit breaker allow it, retrying it while it
+     * is throttled or fails with a server error.  Error responses carry no items, so nothing has
+     * been passed to the handler when a request is retried.
+     */
+    private CompletableFuture<String> execute(String canonicalQueryString,
+        AmazonEC2ResponseParser parser, AmazonEC2ResponseParser.ItemHandler handler
+    ) {
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        pending.add(result);
+        result.whenComplete((nextToken, failure) -> pending.remove(result));
+        attempt(canonicalQueryString, parser, handler, 0, retryBaseDelay, result);
+        return result;
+    }
+
+    /**
+     * Makes one attempt at the request, completing the result or scheduling the next attempt.
+     *
+     * @param delay the delay before the previous attempt, from which the next one is drawn
+     */
+    private void attempt(final String canonicalQueryString, final AmazonEC2ResponseParser parser,
+        final AmazonEC2ResponseParser.ItemHandler handler, final int attempt, final long delay,
+        final CompletableFuture<String> result
+    ) {
+        try {
+            circuitBreaker.acquire();
+        } catch (BridgeError e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        Runnable send = () -> send(canonicalQueryString, parser, handler).whenComplete((nextToken, failure) -> {
+            if (failure == null) {
+                circuitBreaker.onSuccess();
+                result.complete(nextToken);
+            } else {
+                onFailure(canonicalQueryString, parser, handler, attempt, delay, result,
+                    AmazonEC2Futures.unwrap(failure));
+            }
+        });
+        long wait = (rateLimiter == null) ? 0 : rateLimiter.reserve();
+        if (wait <= 0) {
+            send.run();
+            return;
+        }
+        try {
+            scheduler.schedule(send, wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            circuitBreaker.onCancel();
+            result.completeExceptionally(closedError());
+        }
+    }
+
+    private void onFailure(final String canonicalQueryString, final AmazonEC2ResponseParser parser,
+        final AmazonEC2ResponseParser.ItemHandler handler, final int attempt, long delay,
+        final CompletableFuture<String> result, Throwable error
+    ) {
+        if (error instanceof AmazonEC2Error) {
+            AmazonEC2Error e = (AmazonEC2Error)error;
+            if (e.isServerError()) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+            metrics.increment(AmazonEC2Metrics.Counter.FAILED_REQUESTS);
+            if (e.isThrottling()) {
+                metrics.increment(AmazonEC2Metrics.Counter.THROTTLED_REQUESTS);
+            }
+            if (!e.isRetryable() || attempt >= maxRetries
+                || circuitBreaker.getState() == AmazonEC2CircuitBreaker.State.OPEN
+            ) {
+                result.completeExceptionally(e);
+                return;
+            }
+            // Decorrelated jitter: each delay is drawn between the base delay and three times
+            // the previous one, so retrying callers spread out instead of retrying in step
+            final long nextDelay = Math.min(retryMaxDelay,
+                retryBaseDelay + (long)(random.nextDouble() * (delay * 3 - retryBaseDelay)));
+            AmazonEC2Adapter.logger.debug("Retrying the Amazon EC2 request in "+nextDelay+" ms after: "
+                +e.getMessage());
+            metrics.increment(AmazonEC2Metrics.Counter.RETRIES);
+            try {
+                scheduler.schedule(
+                    () -> attempt(canonicalQueryString, parser, handler, attempt + 1, nextDelay, result),
+                    nextDelay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                result.completeExceptionally(e);
+            }
+        } else if (error instanceof IOException) {
+            metrics.increment(AmazonEC2Metrics.Counter.FAILED_REQUESTS);
+            circuitBreaker.onFailure();
+            result.completeExceptionally(new BridgeError(
+                "Unable to make a connection to properly execute the query to Amazon EC2", error));
+        } else if (error instanceof CancellationException) {
+            circuitBreaker.onCancel();
+            result.completeExceptionally(new BridgeError("The request to Amazon EC2 was cancelled.", error));
+        } else {
+            circuitBreaker.onSuccess();
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Signs and sends the request.  Once the response headers have been received its body is
+     * parsed on a worker thread as it streams in, leaving the I/O threads free to serve other
+     * connections.
+     */
+    private CompletableFuture<String> send(String canonicalQueryString,
+        final AmazonEC2ResponseParser parser, final AmazonEC2ResponseParser.ItemHandler handler
+    ) {
+        metrics.increment(AmazonEC2Metrics.Counter.REQUESTS);
+        long started = System.nanoTime();
+        AmazonEC2Signer.Signature signature = signer.sign(host, region, canonicalQueryString, new Date());
+        metrics.record(AmazonEC2Metrics.Timer.SIGN, started);
+
+        HttpGet get = new HttpGet(endpoint+"?"+canonicalQueryString);
+        get.setHeader("Content-Type", "application/x-www-form-urlencoded");
+        get.setHeader("x-amz-date", signature.getAmazonDate());
+        get.setHeader("Authorization", signature.getAuthorization());
+
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        final long sent = System.nanoTime();
+        final AmazonEC2ResponseStream body = new AmazonEC2ResponseStream(BODY_BUFFER_SIZE);
+        try {
+            httpClient.execute(HttpAsyncMethods.create(get), new StreamingResponseConsumer(body) {
+                @Override
+                protected void onResponseReceived(final HttpResponse response) {
+                    metrics.record(AmazonEC2Metrics.Timer.HTTP, sent);
+                    try {
+                        workers.execute(() -> parse(response, body, parser, handler, result));
+                    } catch (RejectedExecutionException e) {
+                        body.close();
+                        result.completeExceptionally(closedError());
+                    }
+                }
+            }, new FutureCallback<Void>() {
+                @Override
+                public void completed(Void ignored) {
+                    // The result is completed by the parser
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    result.completeExceptionally(new CancellationException("The request was cancelled."));
+                }
+            });
+        } catch (IllegalStateException e) {
+            // The I/O reactor has been shut down
+            result.completeExceptionally(closedError());
+        }
+        return result;
+    }
+
+    /**
+     * Parses the response as its body arrives, completing the result with its nextToken or error.
+     */
+    private void parse(HttpResponse response, AmazonEC2ResponseStream body,
+        AmazonEC2ResponseParser parser, AmazonEC2ResponseParser.ItemHandler handler,
+        CompletableFuture<String> result
+    ) {
+        long started = System.nanoTime();
+        CountingInputStream content = null;
+        try {
+            content = new CountingInputStream(body);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                throw AmazonEC2ResponseParser.parseError(content, statusCode,
+                    response.getStatusLine().getReasonPhrase());
+            }
+            result.complete(parser.parse(content, handler));
+        } catch (BridgeError e) {
+            // A body cut short by the connection is a connection failure, not a malformed response
+            IOException failure = body.getFailure();
+            result.completeExceptionally((failure != null) ? failure : e);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        } finally {
+            // Anything the parser left unread is discarded
+            body.close();
+            metrics.record(AmazonEC2Metrics.Timer.PARSE, started);
+            if (content != null) {
+                metrics.add(AmazonEC2Metrics.Counter.BYTES_RECEIVED, content.count);
+            }
+        }
+    }
+
+    private static BridgeError closedError() {
+        return new BridgeError("The Amazon EC2 client has been closed.");
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name+"-"+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Adds the region attribute to each item before passing it on.
+     */
+    private static class RegionItemHandler implements AmazonEC2ResponseParser.ProjectedItemHandler {
+        private final String region;
+        private final AmazonEC2ResponseParser.ItemHandler handler;
+
+        private RegionItemHandler(String region, AmazonEC2ResponseParser.ItemHandler handler) {
+            this.region = region;
+            this.handler = handler;
+        }
+
+        @Override
+        public boolean handle(JSONObject item) throws BridgeError {
+            item.put(REGION, region);
+            return handler.handle(item);
+        }
+
+        @Override
+        public Set<String> getElements() {
+            return (handler instanceof AmazonEC2ResponseParser.ProjectedItemHandler)
+                ? ((AmazonEC2ResponseParser.ProjectedItemHandler)handler).getElements()
+                : null;
+        }
+    }
+
+    /**
+     * Feeds the response body to an AmazonEC2ResponseStream as it arrives.  The stream is failed
+     * if the response ends in any way other than being received in full.
+     */
+    private abstract static class StreamingResponseConsumer extends AbstractAsyncResponseConsumer<Void> {
+        private final AmazonEC2ResponseStream body;
+
+        private StreamingResponseConsumer(AmazonEC2ResponseStream body) {
+            this.body = body;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioControl) throws IOException {
+            body.consume(decoder, ioControl);
+        }
+
+        @Override
+        protected Void buildResult(HttpContext context) {
+            body.end();
+            return null;
+        }
+
+        @Override
+        protected void releaseResources() {
+            // Has no effect once the body has ended
+            body.fail(getException());
+        }
+    }
+
+    /**
+     * Counts the bytes read from the response body.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Honors any Keep-Alive timeout sent by the server, but never holds an idle connection longer
+     * than MAX_KEEP_ALIVE_MILLIS (EC2 does not advertise one, which would otherwise mean forever).
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return (duration > 0 && duration < MAX_KEEP_ALIVE_MILLIS) ? duration : MAX_KEEP_ALIVE_MILLIS;
+        }
+    }
+
+    /**
+     * Connection pool and timeout settings for the HTTP transport.  Timeouts are in milliseconds.
+     */
+    public static class Settings {
+        int maxConnections = 50;
+        int maxConnectionsPerRoute = 20;
+        int connectTimeout = 10000;
+        int socketTimeout = 60000;
+        int connectionRequestTimeout = 10000;
+        int workerThreads = 8;
+        double rateLimit = 20;
+        int rateBurst = 100;
+        int maxRetries = 3;
+        long retryBaseDelay = 100;
+        long retryMaxDelay = 20000;
+        int circuitBreakerThreshold = 5;
+        long circuitBreakerReset = 30000;
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+
+        public Settings setMaxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+        public Settings setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            return this;
+        }
+        public Settings setConnectTimeout(int connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+        public Settings setSocketTimeout(int socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return this;
+        }
+        public Settings setConnectionRequestTimeout(int connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout;
+            return this;
+        }
+        /** Threads parsing responses and running the stages that depend on them. */
+        public Settings setWorkerThreads(int workerThreads) {
+            this.workerThreads = Math.max(1, workerThreads);
+            return this;
+        }
+        /** Requests per second across every region; 0 disables rate limiting. */
+        public Settings setRateLimit(double rateLimit) {
+            this.rateLimit = rateLimit;
+            return this;
+        }
+        public Settings setRateBurst(int rateBurst) {
+            this.rateBurst = rateBurst;
+            return this;
+        }
+        public Settings setMaxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+        public Settings setRetryBaseDelay(long retryBaseDelay) {
+            this.retryBaseDelay = retryBaseDelay;
+            return this;
+        }
+        public Settings setRetryMaxDelay(long retryMaxDelay) {
+            this.retryMaxDelay = retryMaxDelay;
+            return this;
+        }
+        public Settings setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return this;
+        }
+        public Settings setCircuitBreakerReset(long circuitBreakerReset) {
+            this.circuitBreakerReset = circuitBreakerReset;
+            return this;
+        }
+        /** The metrics requests are recorded in. */
+        public Settings setMetrics(AmazonEC2Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+    }
+
+}
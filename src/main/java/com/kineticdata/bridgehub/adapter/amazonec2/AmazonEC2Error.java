@@ -0,0 +1,77 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An error response returned by Amazon EC2, with its HTTP status and the code, message and request
+ * id of the first error in its Errors document.
+ */
+public class AmazonEC2Error extends BridgeError {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The error codes EC2 and the AWS front end use when a request was throttled. */
+    private static final Set<String> THROTTLING_CODES = new HashSet<String>(Arrays.asList(
+        "RequestLimitExceeded", "Throttling", "ThrottlingException", "RequestThrottled",
+        "RequestThrottledException", "TooManyRequestsException", "SlowDown"));
+
+    private final int statusCode;
+    private final String code;
+    private final String errorMessage;
+    private final String requestId;
+
+    /**
+     * @param code the EC2 error code, or null if the response did not include one
+     * @param errorMessage the EC2 error message, or the HTTP reason phrase if there was none
+     */
+    public AmazonEC2Error(int statusCode, String code, String errorMessage, String requestId) {
+        super("Amazon EC2 returned HTTP "+statusCode+(code == null ? "" : " ("+code+")")
+            +(errorMessage == null || errorMessage.isEmpty() ? "." : ": "+errorMessage)
+            +(requestId == null ? "" : " [Request ID: "+requestId+"]"));
+        this.statusCode = statusCode;
+        this.code = code;
+        this.errorMessage = errorMessage;
+        this.requestId = requestId;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Whether EC2 rejected the request because the account exceeded its API rate limits.
+     */
+    public boolean isThrottling() {
+        return statusCode == 429 || (code != null && THROTTLING_CODES.contains(code));
+    }
+
+    /**
+     * Whether the endpoint failed to process the request, rather than rejecting it.
+     */
+    public boolean isServerError() {
+        return statusCode >= 500 && !isThrottling();
+    }
+
+    /**
+     * Whether the same request may succeed if it is sent again later.
+     */
+    public boolean isRetryable() {
+        return isThrottling() || statusCode >= 500;
+    }
+
+}
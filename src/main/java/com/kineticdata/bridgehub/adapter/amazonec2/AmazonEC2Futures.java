@@ -0,0 +1,98 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers for the futures the adapter's request pipeline is built on.
+ *
+ * Stages of the pipeline fail their futures with the BridgeError (or AmazonEC2Error) a blocking
+ * call would have thrown; await() waits for a future and throws that error again, so the
+ * synchronous bridge methods behave as they did when every stage ran on the calling thread.
+ */
+public class AmazonEC2Futures {
+
+    private AmazonEC2Futures() {}
+
+    /**
+     * Waits for the future and returns its result, throwing the error it failed with.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws BridgeError {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for Amazon EC2.", e);
+        } catch (ExecutionException e) {
+            throw toBridgeError(e.getCause());
+        } catch (CancellationException e) {
+            throw new BridgeError("The request to Amazon EC2 was cancelled.", e);
+        }
+    }
+
+    /**
+     * Waits at most timeoutMillis for the future and returns its result, throwing the error it
+     * failed with.  The future is left to finish on its own if the wait times out.
+     */
+    public static <T> T await(CompletableFuture<T> future, long timeoutMillis) throws BridgeError {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new BridgeError("Amazon EC2 did not respond within "+timeoutMillis+" ms.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BridgeError("Interrupted while waiting for Amazon EC2.", e);
+        } catch (ExecutionException e) {
+            throw toBridgeError(e.getCause());
+        } catch (CancellationException e) {
+            throw new BridgeError("The request to Amazon EC2 was cancelled.", e);
+        }
+    }
+
+    /**
+     * Returns a future that has already failed with the error.
+     */
+    public static <T> CompletableFuture<T> failed(Throwable error) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Returns the error a future failed with, without the CompletionException that dependent
+     * stages wrap it in.
+     */
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+            && error.getCause() != null
+        ) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Returns the error as a BridgeError, rethrowing unchecked exceptions and errors as they are.
+     */
+    private static BridgeError toBridgeError(Throwable error) {
+        error = unwrap(error);
+        if (error instanceof BridgeError) {
+            return (BridgeError)error;
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException)error;
+        } else if (error instanceof Error) {
+            throw (Error)error;
+        }
+        return new BridgeError("Unable to complete the request to Amazon EC2.", error);
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Resolves qualification keys against a DescribeInstances instance item.
+ *
+ * Keys are either the name of an attribute of the instance item (instanceId, instanceType...), a
+ * dot separated path into nested elements (placement.availabilityZone), a tag reference in the
+ * same "tag:Name" form EC2 filters use, or one of a handful of aliases for nested attributes that
+ * EC2 exposes as top level filters (instanceState, availabilityZone).
+ */
+public class AmazonEC2InstanceAttributes {
+
+    public static final String TAG_PREFIX = "tag:";
+
+    /** Keys that are shorthand for a nested attribute of the instance item. */
+    private static final Map<String,String> ALIASES = new HashMap<String,String>();
+    static {
+        ALIASES.put("instanceState", "instanceState.name");
+        ALIASES.put("availabilityZone", "placement.availabilityZone");
+        ALIASES.put("tenancy", "placement.tenancy");
+    }
+
+    /**
+     * Returns the string value of the key for the instance, or null if the instance does not have
+     * the attribute or it is not a simple value.
+     */
+    public static String valueOf(JSONObject instance, String key) {
+        return attribute(key).valueOf(instance);
+    }
+
+    /**
+     * Resolves the key once, so the returned attribute can be read from many instances without
+     * splitting the key again.
+     */
+    public static Attribute attribute(String key) {
+        if (key.startsWith(TAG_PREFIX)) {
+            return new Attribute(key, null, key.substring(TAG_PREFIX.length()));
+        }
+        String path = ALIASES.containsKey(key) ? ALIASES.get(key) : key;
+        return new Attribute(key, path.split("\\.", -1), null);
+    }
+
+    /**
+     * Returns the value of the named tag, or null if the instance is not tagged with it.
+     */
+    public static String tagValue(JSONObject instance, String tagName) {
+        JSONObject tagSet = instance.optJSONObject("tagSet");
+        if (tagSet == null) {
+            return null;
+        }
+        // A single tag is converted to an object rather than an array of one
+        JSONArray items = tagSet.optJSONArray("item");
+        if (items == null) {
+            return tagMatch(tagSet.optJSONObject("item"), tagName);
+        }
+        for (int i = 0; i < items.length(); i++) {
+            String value = tagMatch(items.optJSONObject(i), tagName);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the key and value of each of the instance's tags, in the order EC2 returned them.
+     */
+    public static List<String[]> tags(JSONObject instance) {
+        JSONObject tagSet = instance.optJSONObject("tagSet");
+        if (tagSet == null) {
+            return Collections.emptyList();
+        }
+        JSONArray items = tagSet.optJSONArray("item");
+        if (items == null) {
+            items = new JSONArray();
+            if (tagSet.optJSONObject("item") != null) items.put(tagSet.optJSONObject("item"));
+        }
+        List<String[]> tags = new ArrayList<String[]>(items.length());
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject tag = items.optJSONObject(i);
+            if (tag != null && tag.opt("key") != null) {
+                Object value = tag.opt("value");
+                tags.add(new String[] { tag.opt("key").toString(), value == null ? "" : value.toString() });
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * A qualification key resolved to either a path of nested element names or a tag name.
+     */
+    public static class Attribute {
+        private final String key;
+        private final String[] path;
+        private final String tagName;
+
+        private Attribute(String key, String[] path, String tagName) {
+            this.key = key;
+            this.path = path;
+            this.tagName = tagName;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /** The name of the top level element of the instance item the attribute is read from. */
+        public String getElement() {
+            return (tagName != null) ? "tagSet" : path[0];
+        }
+
+        /**
+         * Returns the string value of the attribute for the instance, or null if the instance does
+         * not have it or it is not a simple value.
+         */
+        public String valueOf(JSONObject instance) {
+            if (tagName != null) {
+                return tagValue(instance, tagName);
+            }
+            Object value = instance;
+            for (int i = 0; i < path.length && value != null; i++) {
+                value = (value instanceof JSONObject) ? ((JSONObject)value).opt(path[i]) : null;
+            }
+            if (value == null || value instanceof JSONObject || value instanceof JSONArray) {
+                return null;
+            }
+            return (value instanceof String) ? (String)value : value.toString();
+        }
+    }
+
+    private static String tagMatch(JSONObject tag, String tagName) {
+        if (tag != null && tagName.equals(String.valueOf(tag.opt("key")))) {
+            Object value = tag.opt("value");
+            return value == null ? "" : value.toString();
+        }
+        return null;
+    }
+
+}
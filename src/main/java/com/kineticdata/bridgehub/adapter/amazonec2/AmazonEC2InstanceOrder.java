@@ -0,0 +1,235 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.json.JSONObject;
+
+/**
+ * Orders instances by one or more qualification keys, each ascending or descending, as given by
+ * the bridge request's order metadata.
+ *
+ * Values are compared by type: numbers numerically, ISO 8601 timestamps (such as launchTime)
+ * chronologically and anything else as text, with numbers before timestamps before text when a key
+ * holds values of more than one type.  Instances without a value for a key sort after those with
+ * one when ascending and before them when descending.  Instances that compare equal keep the order
+ * they were seen in, so repeated searches page consistently.
+ *
+ * A Selection keeps only the first N instances in this order, in a bounded heap, so a page of a
+ * large result set is found without holding or sorting every match.
+ */
+public class AmazonEC2InstanceOrder implements Comparator<AmazonEC2InstanceOrder.Entry> {
+
+    private final List<AmazonEC2InstanceAttributes.Attribute> attributes =
+        new ArrayList<AmazonEC2InstanceAttributes.Attribute>();
+    private final boolean[] descending;
+
+    /**
+     * @param fields each key to order by, in order of precedence, mapped to ASC or DESC (as
+     *     returned by BridgeUtils.parseOrder)
+     */
+    public AmazonEC2InstanceOrder(Map<String,String> fields) {
+        this.descending = new boolean[fields.size()];
+        int i = 0;
+        for (Map.Entry<String,String> field : fields.entrySet()) {
+            attributes.add(AmazonEC2InstanceAttributes.attribute(field.getKey()));
+            descending[i++] = "DESC".equalsIgnoreCase(field.getValue());
+        }
+    }
+
+    /**
+     * Returns the top level elements of the instance items the ordered values are read from.
+     */
+    public Set<String> getElements() {
+        Set<String> elements = new HashSet<String>();
+        for (AmazonEC2InstanceAttributes.Attribute attribute : attributes) {
+            elements.add(attribute.getElement());
+        }
+        return elements;
+    }
+
+    /**
+     * Returns a selection of the first size instances offered to it.
+     */
+    public Selection select(int size) {
+        return new Selection(size);
+    }
+
+    @Override
+    public int compare(Entry a, Entry b) {
+        for (int i = 0; i < descending.length; i++) {
+            int comparison = a.values[i].compareTo(b.values[i]);
+            if (comparison != 0) {
+                return descending[i] ? -comparison : comparison;
+            }
+        }
+        return (a.sequence < b.sequence) ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private Entry entry(JSONObject instance, long sequence) {
+        Value[] values = new Value[attributes.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Value(attributes.get(i).valueOf(instance));
+        }
+        return new Entry(instance, values, sequence);
+    }
+
+    /**
+     * An instance with its ordered values, read once when it is offered.
+     */
+    static class Entry {
+        private final JSONObject instance;
+        private final Value[] values;
+        private final long sequence;
+
+        private Entry(JSONObject instance, Value[] values, long sequence) {
+            this.instance = instance;
+            this.values = values;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Keeps the first instances, in order, of those offered.
+     */
+    public class Selection {
+        private final int size;
+        /** Ordered with the last kept instance at its head, so it can be replaced by a better one. */
+        private final PriorityQueue<Entry> heap;
+        private long offered = 0;
+
+        private Selection(int size) {
+            this.size = size;
+            this.heap = new PriorityQueue<Entry>(Math.max(1, Math.min(size, 1024)),
+                Collections.reverseOrder(AmazonEC2InstanceOrder.this));
+        }
+
+        public void offer(JSONObject instance) {
+            Entry entry = entry(instance, offered++);
+            if (heap.size() < size) {
+                heap.add(entry);
+            } else if (size > 0 && compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+
+        /**
+         * Offers the instances kept by another selection, in their order, after those already
+         * offered to this one.  The other selection's offered instances are counted as offered here.
+         */
+        public void addAll(Selection other) {
+            long total = offered + other.offered;
+            for (JSONObject instance : other.getInstances()) {
+                offer(instance);
+            }
+            offered = total;
+        }
+
+        /** The number of instances offered, whether or not they were kept. */
+        public long getOffered() {
+            return offered;
+        }
+
+        /**
+         * Returns the kept instances in order.
+         */
+        public List<JSONObject> getInstances() {
+            List<Entry> entries = new ArrayList<Entry>(heap);
+            Collections.sort(entries, AmazonEC2InstanceOrder.this);
+            List<JSONObject> instances = new ArrayList<JSONObject>(entries.size());
+            for (Entry entry : entries) {
+                instances.add(entry.instance);
+            }
+            return instances;
+        }
+    }
+
+    /**
+     * A value to order by, with its numeric or timestamp interpretation if it has one.  Values of
+     * different types are ordered by type, numbers before timestamps before text, so that mixed
+     * values of a key still compare consistently.
+     */
+    private static class Value implements Comparable<Value> {
+        private static final int NUMBER = 0;
+        private static final int TIMESTAMP = 1;
+        private static final int TEXT = 2;
+
+        private final String text;
+        private final int type;
+        private final double number;
+        private final Instant time;
+
+        private Value(String text) {
+            this.text = text;
+            this.number = (text != null && isNumber(text)) ? Double.parseDouble(text) : Double.NaN;
+            this.time = (text == null || !Double.isNaN(number)) ? null : parseTimestamp(text);
+            this.type = !Double.isNaN(number) ? NUMBER : (time != null ? TIMESTAMP : TEXT);
+        }
+
+        @Override
+        public int compareTo(Value other) {
+            if (text == null || other.text == null) {
+                return (text == null) ? (other.text == null ? 0 : 1) : -1;
+            }
+            if (type != other.type) {
+                return (type < other.type) ? -1 : 1;
+            }
+            switch (type) {
+                case NUMBER:
+                    return Double.compare(number, other.number);
+                case TIMESTAMP:
+                    return time.compareTo(other.time);
+                default:
+                    return text.compareTo(other.text);
+            }
+        }
+
+        private static boolean isNumber(String text) {
+            int i = (text.startsWith("-")) ? 1 : 0;
+            int digits = 0;
+            boolean point = false;
+            for (; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    digits++;
+                } else if (c == '.' && !point) {
+                    point = true;
+                } else {
+                    return false;
+                }
+            }
+            return digits > 0;
+        }
+
+        /**
+         * Returns the instant of an ISO 8601 timestamp with an offset, such as
+         * 2016-08-23T12:37:00.000Z, or null if the text is not one.
+         */
+        private static Instant parseTimestamp(String text) {
+            // Most text is rejected without the cost of a parse exception
+            if (text.length() < 17 || text.charAt(4) != '-' || text.charAt(10) != 'T') {
+                return null;
+            }
+            try {
+                return OffsetDateTime.parse(text, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant();
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+}
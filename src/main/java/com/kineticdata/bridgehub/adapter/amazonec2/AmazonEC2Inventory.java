@@ -0,0 +1,56 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONObject;
+
+/**
+ * An immutable snapshot of every instance visible to the adapter, as of the time it was loaded.
+ *
+ * Snapshots are never modified once published; a refresh builds a new snapshot and swaps it in,
+ * so readers always see one consistent version of the inventory.  The snapshot's indexes are
+ * built along with it.
+ */
+public class AmazonEC2Inventory {
+
+    private final List<JSONObject> instances;
+    private final long loadedAt;
+    private final long generation;
+    private final AmazonEC2InventoryIndex index;
+
+    /**
+     * @param indexedKeys the qualification keys to build secondary indexes for
+     */
+    public AmazonEC2Inventory(List<JSONObject> instances, long loadedAt, long generation,
+        Collection<String> indexedKeys
+    ) {
+        this.instances = Collections.unmodifiableList(instances);
+        this.loadedAt = loadedAt;
+        this.generation = generation;
+        this.index = new AmazonEC2InventoryIndex(this.instances, indexedKeys);
+    }
+
+    public List<JSONObject> getInstances() {
+        return instances;
+    }
+
+    /** When the snapshot was loaded, in milliseconds since the epoch. */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    /** Increases by one each time a new snapshot is published. */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public AmazonEC2InventoryIndex getIndex() {
+        return index;
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+}
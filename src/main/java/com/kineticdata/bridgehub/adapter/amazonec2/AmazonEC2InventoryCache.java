@@ -0,0 +1,482 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONObject;
+
+/**
+ * Holds an in-memory snapshot of the account's instances, across every configured region, so
+ * bridge requests can be answered without calling EC2.
+ *
+ * The first request loads the snapshot synchronously (concurrent requests wait for that single
+ * load).  Once the snapshot is older than the TTL it keeps being served while a refresh runs on
+ * the cache's scheduler thread (stale-while-revalidate), so requests never wait on a reload.  If
+ * the account holds more instances than the configured maximum the snapshot is discarded and
+ * callers fall back to querying EC2 directly until the TTL has passed again; if the first load
+ * fails they do the same until it is retried, at most 30 seconds later.
+ *
+ * With a delta interval, the snapshot is also kept current between full sweeps.  Every interval
+ * the cache polls DescribeInstanceStatus, which lists only the id and state of each instance, and
+ * refetches just the instances that were launched or changed state since the snapshot was taken;
+ * instances EC2 no longer lists are dropped.  Each change publishes a new snapshot with the next
+ * generation.  Changes that leave the state alone, such as retagging, wait for the next full
+ * sweep, which the scheduler then runs every TTL on its own.
+ *
+ * With a snapshot file, each full sweep (and the changes polled since, at most once a minute) is
+ * saved to it in the background, and restore() loads it when the adapter starts.  The restored
+ * inventory is served at once while a full sweep replaces it.
+ */
+public class AmazonEC2InventoryCache {
+
+    private final List<AmazonEC2Client> clients;
+    private final int requestPageSize;
+    private final long ttlMillis;
+    private final int maxInstances;
+    private final Collection<String> indexedKeys;
+    private final long deltaMillis;
+    private final long timeoutMillis;
+    private final AmazonEC2InventorySnapshot snapshot;
+    private final ScheduledExecutorService scheduler;
+
+    /** Serializes loads, so only one full sweep of the account is ever in progress. */
+    private final Object loadLock = new Object();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+    private volatile AmazonEC2Inventory inventory;
+    /** When the last full sweep that was published started. */
+    private volatile long sweptAt = 0;
+    /** When a snapshot was last saved; only used on the scheduler thread. */
+    private long savedAt = 0;
+    /** Until when no load is attempted, after exceeding maxInstances or failing to load. */
+    private volatile long uncachedUntil = 0;
+    private long generation = 0;
+
+    /** The instance-id filter values sent per request when refetching changed instances. */
+    private static final int MAX_FILTER_VALUES = 200;
+    /** The longest wait before a load is attempted again after one failed. */
+    private static final long LOAD_RETRY_MILLIS = 30000L;
+    /** The least time between saving snapshots of polled changes. */
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 60000L;
+    private static final Set<String> STATUS_ELEMENTS =
+        new HashSet<String>(Arrays.asList("instanceId", "instanceState"));
+
+    /**
+     * @param clients the client of each region, in the order their instances are listed
+     * @param deltaMillis the interval between polls for changed instances, or 0 to only ever
+     *     replace the snapshot with full sweeps
+     * @param timeoutMillis the longest wait for each request of a sweep or poll
+     * @param snapshot where the inventory is saved, or null to keep it only in memory
+     */
+    public AmazonEC2InventoryCache(List<AmazonEC2Client> clients, int requestPageSize, long ttlMillis,
+        int maxInstances, Collection<String> indexedKeys, long deltaMillis, long timeoutMillis,
+        AmazonEC2InventorySnapshot snapshot
+    ) {
+        this.clients = clients;
+        this.requestPageSize = requestPageSize;
+        this.ttlMillis = ttlMillis;
+        this.maxInstances = maxInstances;
+        this.indexedKeys = indexedKeys;
+        this.deltaMillis = deltaMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.snapshot = snapshot;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AmazonEC2InventoryRefresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the current snapshot, loading it first if there is none, or null if the inventory
+     * is too large to be cached or could not be loaded.  A snapshot older than the TTL is returned
+     * as is and a background refresh is started.
+     */
+    public AmazonEC2Inventory get() {
+        AmazonEC2Inventory current = inventory;
+        if (current == null) {
+            if (System.currentTimeMillis() < uncachedUntil) {
+                return null;
+            }
+            synchronized (loadLock) {
+                if (inventory == null && System.currentTimeMillis() >= uncachedUntil) {
+                    try {
+                        load();
+                    } catch (BridgeError e) {
+                        AmazonEC2Adapter.logger.warn("Unable to load the Amazon EC2 inventory; "
+                            + "requests are answered from EC2 until it can be loaded.", e);
+                        uncachedUntil = System.currentTimeMillis()
+                            + Math.min(ttlMillis, LOAD_RETRY_MILLIS);
+                    }
+                }
+                return inventory;
+            }
+        }
+        if (System.currentTimeMillis() - sweptAt >= ttlMillis) {
+            refreshAsync();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the current snapshot without loading or refreshing it, or null if there is none.
+     */
+    public AmazonEC2Inventory peek() {
+        return inventory;
+    }
+
+    /**
+     * Serves the inventory saved in the snapshot file, if there is a usable one, until a full
+     * sweep started in the background replaces it.
+     *
+     * @return whether an inventory was restored
+     */
+    public boolean restore() {
+        if (snapshot == null) {
+            return false;
+        }
+        synchronized (loadLock) {
+            try {
+                AmazonEC2Inventory restored = snapshot.read(generation + 1, indexedKeys);
+                if (restored == null || restored.size() > maxInstances) {
+                    return false;
+                }
+                generation++;
+                inventory = restored;
+                AmazonEC2Adapter.logger.info("Restored "+restored.size()+" Amazon EC2 instances "
+                    + "loaded "+(System.currentTimeMillis() - restored.getLoadedAt()) / 1000
+                    + " seconds ago from "+snapshot.getFile()+".");
+            } catch (IOException e) {
+                AmazonEC2Adapter.logger.warn("Unable to restore the Amazon EC2 inventory from "
+                    + snapshot.getFile()+".", e);
+                return false;
+            } catch (RuntimeException e) {
+                AmazonEC2Adapter.logger.warn("Unable to restore the Amazon EC2 inventory from "
+                    + snapshot.getFile()+".", e);
+                return false;
+            }
+        }
+        // sweptAt is still 0, so the restored inventory is already due for a sweep
+        refreshAsync();
+        return true;
+    }
+
+    /**
+     * Reloads the snapshot immediately, waiting for the reload to complete.
+     */
+    public AmazonEC2Inventory refresh() throws BridgeError {
+        synchronized (loadLock) {
+            load();
+            return inventory;
+        }
+    }
+
+    /**
+     * Starts a reload on the scheduler thread unless one is already running.
+     */
+    public void refreshAsync() {
+        if (refreshing.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronized (loadLock) {
+                                // A scheduled sweep may have run while this one was queued
+                                if (System.currentTimeMillis() - sweptAt >= ttlMillis) {
+                                    load();
+                                }
+                            }
+                        } catch (BridgeError e) {
+                            AmazonEC2Adapter.logger.warn("Unable to refresh the Amazon EC2 inventory.", e);
+                        } catch (RuntimeException e) {
+                            AmazonEC2Adapter.logger.warn("Unable to refresh the Amazon EC2 inventory.", e);
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The cache has been closed
+                refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Polls for changed instances and publishes them, or runs a full sweep instead if the last one
+     * is older than the TTL.  Does nothing while there is no snapshot.
+     */
+    public void sync() throws BridgeError {
+        synchronized (loadLock) {
+            if (inventory == null) {
+                return;
+            }
+            if (System.currentTimeMillis() - sweptAt >= ttlMillis) {
+                load();
+            } else {
+                applyChanges();
+            }
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Sweeps every page of the account in each region and publishes the result.  Must hold
+     * loadLock.
+     */
+    private void load() throws BridgeError {
+        long started = System.currentTimeMillis();
+        final List<JSONObject> instances = new ArrayList<JSONObject>();
+        final boolean[] oversized = { false };
+        AmazonEC2ResponseParser.ItemHandler handler = new AmazonEC2ResponseParser.ItemHandler() {
+            @Override
+            public boolean handle(JSONObject instance) {
+                if (instances.size() >= maxInstances) {
+                    oversized[0] = true;
+                    return false;
+                }
+                instances.add(instance);
+                return true;
+            }
+        };
+
+        for (AmazonEC2Client client : clients) {
+            AmazonEC2PageIterator pages = new AmazonEC2PageIterator(
+                client, new TreeMap<String,String>(), null, requestPageSize);
+            while (!oversized[0] && pages.hasNext()) {
+                AmazonEC2Futures.await(pages.nextAsync(handler), timeoutMillis);
+            }
+        }
+
+        if (oversized[0]) {
+            AmazonEC2Adapter.logger.warn("The Amazon EC2 inventory exceeds "+maxInstances
+                +" instances and will not be cached.");
+            inventory = null;
+            uncachedUntil = System.currentTimeMillis() + ttlMillis;
+        } else {
+            inventory = new AmazonEC2Inventory(instances, started, ++generation, indexedKeys);
+            sweptAt = started;
+            schedulePolling();
+            save(inventory, true);
+        }
+    }
+
+    /**
+     * Writes the inventory to the snapshot file on the scheduler thread.  Unless forced, nothing is
+     * written if a snapshot was saved within the snapshot interval.
+     */
+    private void save(final AmazonEC2Inventory saved, final boolean force) {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // A later inventory has been published and will be saved itself
+                    if (saved != inventory) return;
+                    long now = System.currentTimeMillis();
+                    if (!force && now - savedAt < SNAPSHOT_INTERVAL_MILLIS) return;
+                    try {
+                        snapshot.write(saved);
+                        savedAt = now;
+                    } catch (IOException e) {
+                        AmazonEC2Adapter.logger.warn("Unable to save the Amazon EC2 inventory to "
+                            + snapshot.getFile()+".", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The cache has been closed
+        }
+    }
+
+    /**
+     * Starts polling for changes every delta interval, once the first snapshot has been loaded.
+     */
+    private void schedulePolling() {
+        if (deltaMillis <= 0 || !polling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sync();
+                    } catch (BridgeError e) {
+                        AmazonEC2Adapter.logger.warn("Unable to update the Amazon EC2 inventory.", e);
+                    } catch (RuntimeException e) {
+                        AmazonEC2Adapter.logger.warn("Unable to update the Amazon EC2 inventory.", e);
+                    }
+                }
+            }, deltaMillis, deltaMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The cache has been closed
+        }
+    }
+
+    /**
+     * Compares the state of every instance EC2 reports with the snapshot, refetches the instances
+     * that are new or whose state changed, and publishes a snapshot with those instances replaced
+     * and the instances EC2 no longer lists removed.  A region that cannot be polled keeps its
+     * instances as they are.  Must hold loadLock.
+     */
+    private void applyChanges() throws BridgeError {
+        long started = System.currentTimeMillis();
+        AmazonEC2Inventory current = inventory;
+        Map<String,JSONObject> updated = new LinkedHashMap<String,JSONObject>();
+        Set<String> removed = new HashSet<String>();
+
+        for (AmazonEC2Client client : clients) {
+            try {
+                Map<String,String> states = instanceStates(client);
+                List<String> changed = new ArrayList<String>();
+                for (Map.Entry<String,String> state : states.entrySet()) {
+                    JSONObject cached = current.getIndex().get(state.getKey());
+                    if (cached == null || !state.getValue().equals(stateName(cached))) {
+                        changed.add(state.getKey());
+                    }
+                }
+                for (JSONObject instance : current.getInstances()) {
+                    String instanceId = instance.optString("instanceId");
+                    if (client.getRegion().equals(instance.optString(AmazonEC2Client.REGION))
+                        && !states.containsKey(instanceId)
+                    ) {
+                        removed.add(instanceId);
+                    }
+                }
+                Map<String,JSONObject> fetched = fetch(client, changed);
+                for (String instanceId : changed) {
+                    if (!fetched.containsKey(instanceId)) {
+                        // Gone between the status poll and the fetch
+                        removed.add(instanceId);
+                    }
+                }
+                updated.putAll(fetched);
+            } catch (BridgeError e) {
+                AmazonEC2Adapter.logger.warn("Unable to poll Amazon EC2 region "+client.getRegion()
+                    +" for changed instances; its cached instances are left as they are.", e);
+            }
+        }
+        if (updated.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        int refetched = updated.size();
+        List<JSONObject> instances = new ArrayList<JSONObject>(current.size() + updated.size());
+        for (JSONObject instance : current.getInstances()) {
+            String instanceId = instance.optString("instanceId");
+            JSONObject replacement = updated.remove(instanceId);
+            if (replacement != null) {
+                instances.add(replacement);
+            } else if (!removed.contains(instanceId)) {
+                instances.add(instance);
+            }
+        }
+        instances.addAll(updated.values());
+        if (instances.size() > maxInstances) {
+            load();
+            return;
+        }
+        inventory = new AmazonEC2Inventory(instances, started, ++generation, indexedKeys);
+        save(inventory, false);
+        AmazonEC2Adapter.logger.debug("Refetched "+refetched+" and removed "+removed.size()
+            + " cached Amazon EC2 instances (generation "+generation+").");
+    }
+
+    /**
+     * Returns the state name of every instance in the client's region, by instanceId.
+     */
+    private Map<String,String> instanceStates(AmazonEC2Client client) throws BridgeError {
+        final Map<String,String> states = new HashMap<String,String>();
+        AmazonEC2ResponseParser.ProjectedItemHandler handler = new AmazonEC2ResponseParser.ProjectedItemHandler() {
+            @Override
+            public boolean handle(JSONObject status) {
+                states.put(status.optString("instanceId"), stateName(status));
+                return true;
+            }
+
+            @Override
+            public Set<String> getElements() {
+                return STATUS_ELEMENTS;
+            }
+        };
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("IncludeAllInstances", "true");
+        parameters.put("MaxResults", String.valueOf(AmazonEC2PageIterator.MAX_PAGE_SIZE));
+        String nextToken = null;
+        do {
+            if (nextToken != null) {
+                parameters.put("NextToken", nextToken);
+            }
+            nextToken = AmazonEC2Futures.await(
+                client.describeInstanceStatusAsync(parameters, handler), timeoutMillis);
+        } while (nextToken != null);
+        return states;
+    }
+
+    /**
+     * Fetches the given instances of the client's region, by instanceId.  Instances that no longer
+     * exist are left out.
+     */
+    private Map<String,JSONObject> fetch(AmazonEC2Client client, List<String> instanceIds)
+        throws BridgeError
+    {
+        final Map<String,JSONObject> instances = new HashMap<String,JSONObject>();
+        AmazonEC2ResponseParser.ItemHandler handler = new AmazonEC2ResponseParser.ItemHandler() {
+            @Override
+            public boolean handle(JSONObject instance) {
+                instances.put(instance.optString("instanceId"), instance);
+                return true;
+            }
+        };
+        // An instance-id filter, unlike InstanceId.N, ignores instances that do not exist
+        for (int start = 0; start < instanceIds.size(); start += MAX_FILTER_VALUES) {
+            SortedMap<String,String> parameters = new TreeMap<String,String>();
+            parameters.put("Filter.1.Name", "instance-id");
+            List<String> batch = instanceIds.subList(start, Math.min(instanceIds.size(), start + MAX_FILTER_VALUES));
+            for (int i = 0; i < batch.size(); i++) {
+                parameters.put("Filter.1.Value."+(i + 1), batch.get(i));
+            }
+            AmazonEC2PageIterator pages = new AmazonEC2PageIterator(client, parameters, null, requestPageSize);
+            while (pages.hasNext()) {
+                AmazonEC2Futures.await(pages.nextAsync(handler), timeoutMillis);
+            }
+        }
+        return instances;
+    }
+
+    private static String stateName(JSONObject item) {
+        JSONObject state = item.optJSONObject("instanceState");
+        return (state == null) ? "" : state.optString("name");
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONObject;
+
+/**
+ * Hash indexes over the instances of an inventory snapshot.
+ *
+ * The primary index maps each instanceId to its instance.  Secondary indexes map each value of a
+ * configured attribute key to a postings list: the ascending positions of the instances with that
+ * value.  Equality conditions on indexed keys are answered by intersecting their postings lists,
+ * so only candidate instances have to be checked against the rest of the qualification, and in the
+ * same order they appear in the snapshot.
+ *
+ * Secondary keys are qualification keys (see AmazonEC2InstanceAttributes); "tag:*" indexes every
+ * tag of every instance under its own "tag:Name" key.  Indexes are built once, when the snapshot is
+ * loaded, and never modified.
+ */
+public class AmazonEC2InventoryIndex {
+
+    public static final String ALL_TAGS = AmazonEC2InstanceAttributes.TAG_PREFIX + "*";
+
+    private static final int[] EMPTY = new int[0];
+
+    private final List<JSONObject> instances;
+    private final Map<String,Integer> instanceIds;
+    private final Map<String,Map<String,int[]>> postings;
+    private final boolean allTags;
+
+    public AmazonEC2InventoryIndex(List<JSONObject> instances, Collection<String> indexedKeys) {
+        this.instances = instances;
+        this.allTags = indexedKeys.contains(ALL_TAGS);
+
+        Map<String,Map<String,PostingsBuilder>> builders = new HashMap<String,Map<String,PostingsBuilder>>();
+        List<AmazonEC2InstanceAttributes.Attribute> attributes =
+            new ArrayList<AmazonEC2InstanceAttributes.Attribute>();
+        for (String key : indexedKeys) {
+            if (!ALL_TAGS.equals(key) && !AmazonEC2QueryTranslator.INSTANCE_ID.equals(key)) {
+                builders.put(key, new HashMap<String,PostingsBuilder>());
+                attributes.add(AmazonEC2InstanceAttributes.attribute(key));
+            }
+        }
+        AmazonEC2InstanceAttributes.Attribute instanceIdAttribute =
+            AmazonEC2InstanceAttributes.attribute(AmazonEC2QueryTranslator.INSTANCE_ID);
+
+        this.instanceIds = new HashMap<String,Integer>(instances.size() * 4 / 3 + 1);
+        for (int position = 0; position < instances.size(); position++) {
+            JSONObject instance = instances.get(position);
+            String instanceId = instanceIdAttribute.valueOf(instance);
+            if (instanceId != null) {
+                instanceIds.put(instanceId, position);
+            }
+            for (AmazonEC2InstanceAttributes.Attribute attribute : attributes) {
+                add(builders.get(attribute.getKey()), attribute.valueOf(instance), position);
+            }
+            if (allTags) {
+                for (String[] tag : AmazonEC2InstanceAttributes.tags(instance)) {
+                    String key = AmazonEC2InstanceAttributes.TAG_PREFIX + tag[0];
+                    Map<String,PostingsBuilder> values = builders.get(key);
+                    if (values == null) {
+                        values = new HashMap<String,PostingsBuilder>();
+                        builders.put(key, values);
+                    }
+                    add(values, tag[1], position);
+                }
+            }
+        }
+
+        this.postings = new HashMap<String,Map<String,int[]>>(builders.size() * 4 / 3 + 1);
+        for (Map.Entry<String,Map<String,PostingsBuilder>> entry : builders.entrySet()) {
+            Map<String,int[]> values = new HashMap<String,int[]>(entry.getValue().size() * 4 / 3 + 1);
+            for (Map.Entry<String,PostingsBuilder> value : entry.getValue().entrySet()) {
+                values.put(value.getKey(), value.getValue().toArray());
+            }
+            postings.put(entry.getKey(), values);
+        }
+    }
+
+    /**
+     * Returns the instance with the id, or null if there is none.
+     */
+    public JSONObject get(String instanceId) {
+        Integer position = instanceIds.get(instanceId);
+        return position == null ? null : instances.get(position);
+    }
+
+    /**
+     * Whether equality conditions on the key can be answered from the index.
+     */
+    public boolean isIndexed(String key) {
+        return AmazonEC2QueryTranslator.INSTANCE_ID.equals(key)
+            || postings.containsKey(key)
+            || (allTags && key.startsWith(AmazonEC2InstanceAttributes.TAG_PREFIX));
+    }
+
+    /**
+     * Returns the instances that satisfy every equality condition on an indexed key, in snapshot order, or
+     * all instances if none of the conditions are on an indexed key.  The candidates still have to
+     * be checked against the conditions on keys that are not indexed.
+     */
+    public List<JSONObject> candidates(List<AmazonEC2Qualification.Comparison> conditions) {
+        List<int[]> lists = new ArrayList<int[]>();
+        for (AmazonEC2Qualification.Comparison condition : conditions) {
+            if (isIndexed(condition.getKey())) {
+                lists.add(lookup(condition.getKey(), condition.getValue()));
+            }
+        }
+        if (lists.isEmpty()) {
+            return instances;
+        }
+
+        // Intersect starting from the shortest list, so the intermediate result only shrinks
+        int[] result = lists.get(0);
+        for (int[] list : lists) {
+            if (list.length < result.length) result = list;
+        }
+        for (int[] list : lists) {
+            if (list != result) result = intersect(result, list);
+            if (result.length == 0) break;
+        }
+        return new PositionList(instances, result);
+    }
+
+    /**
+     * Counts the instances matching the translation.  When every condition of the qualification
+     * is on an indexed key the count is the size of the intersected postings lists and no instance
+     * is examined at all.
+     */
+    public int count(AmazonEC2QueryTranslator.Translation translation) {
+        List<JSONObject> candidates = candidates(translation.getConditions());
+        boolean indexed = translation.isConditionsOnly();
+        for (AmazonEC2Qualification.Comparison condition : translation.getConditions()) {
+            indexed = indexed && isIndexed(condition.getKey());
+        }
+        if (indexed) {
+            return candidates.size();
+        }
+        int count = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (translation.matchesAll(candidates.get(i))) count++;
+        }
+        return count;
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private int[] lookup(String key, String value) {
+        if (AmazonEC2QueryTranslator.INSTANCE_ID.equals(key)) {
+            Integer position = instanceIds.get(value);
+            return position == null ? EMPTY : new int[] { position };
+        }
+        Map<String,int[]> values = postings.get(key);
+        int[] positions = (values == null) ? null : values.get(value);
+        return positions == null ? EMPTY : positions;
+    }
+
+    private static void add(Map<String,PostingsBuilder> values, String value, int position) {
+        if (value == null) {
+            return;
+        }
+        PostingsBuilder builder = values.get(value);
+        if (builder == null) {
+            builder = new PostingsBuilder();
+            values.put(value, builder);
+        }
+        builder.add(position);
+    }
+
+    /**
+     * Intersects two ascending postings lists.
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Growable list of ascending positions.
+     */
+    private static class PostingsBuilder {
+        private int[] positions = new int[4];
+        private int size = 0;
+
+        private void add(int position) {
+            // Instances can repeat a tag key, which must not repeat the position
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+
+    /**
+     * Read-only view of the instances at the given positions.
+     */
+    private static class PositionList extends AbstractList<JSONObject> {
+        private final List<JSONObject> instances;
+        private final int[] positions;
+
+        private PositionList(List<JSONObject> instances, int[] positions) {
+            this.instances = instances;
+            this.positions = positions;
+        }
+
+        @Override
+        public JSONObject get(int index) {
+            return instances.get(positions[index]);
+        }
+
+        @Override
+        public int size() {
+            return positions.length;
+        }
+    }
+
+}
@@ -0,0 +1,350 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Saves the cached inventory to a local file and restores it, so a restarted adapter can answer
+ * requests from the cache while its first sweep of the account runs.
+ *
+ * The file is a compact binary encoding of the parsed instances: a header (magic number, format
+ * version, a digest of the account and regions it was taken from, and when it was loaded), each
+ * instance as a tree of tagged values, and a CRC32 of everything before it.  Every string is
+ * written once and referred to by its index afterwards, so the names and values repeated across
+ * instances take a few bytes each, and restored instances share them.  Files are written to a
+ * temporary file that is then renamed over the previous one, so a reader never sees a partial
+ * file, and are read through a memory mapping.
+ */
+public class AmazonEC2InventorySnapshot {
+
+    private static final int MAGIC = 0x45433249; // "EC2I"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte OBJECT = 1;
+    private static final byte ARRAY = 2;
+    private static final byte STRING = 3;
+    private static final byte INTEGER = 4;
+    private static final byte LONG = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte TRUE = 7;
+    private static final byte FALSE = 8;
+    private static final byte NULL = 9;
+
+    private final File file;
+    private final String source;
+
+    /**
+     * @param source identifies the account and regions the inventory is taken from; a file saved
+     *     for a different source is not restored
+     */
+    public AmazonEC2InventorySnapshot(File file, String source) {
+        this.file = file;
+        this.source = digest(source);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the inventory to the file, replacing any previous snapshot.
+     */
+    public void write(AmazonEC2Inventory inventory) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory "+directory+".");
+        }
+        File temporary = File.createTempFile(file.getName()+".", ".tmp", directory);
+        boolean replaced = false;
+        try {
+            FileOutputStream stream = new FileOutputStream(temporary);
+            try {
+                CRC32 checksum = new CRC32();
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new CheckedOutputStream(stream, checksum), 65536));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(source);
+                out.writeLong(inventory.getLoadedAt());
+                out.writeInt(inventory.size());
+                Writer writer = new Writer(out);
+                for (JSONObject instance : inventory.getInstances()) {
+                    writer.writeValue(instance);
+                }
+                out.flush();
+                new DataOutputStream(stream).writeLong(checksum.getValue());
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!temporary.renameTo(file)) {
+                // Some platforms will not rename over an existing file
+                if (!file.delete() || !temporary.renameTo(file)) {
+                    throw new IOException("Unable to replace "+file+" with "+temporary+".");
+                }
+            }
+            replaced = true;
+        } finally {
+            if (!replaced && !temporary.delete()) {
+                AmazonEC2Adapter.logger.debug("Unable to delete "+temporary+".");
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot, returning null if there is no file.
+     *
+     * @param generation the generation to give the restored inventory
+     * @throws IOException if the file cannot be read, is corrupt, is of an unsupported version or
+     *     was saved for a different source
+     */
+    public AmazonEC2Inventory read(long generation, Collection<String> indexedKeys) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (buffer.limit() < 16 || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file+" is not an Amazon EC2 inventory snapshot.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file+" is a version "+buffer.getInt(4)+" inventory snapshot; "
+                + "version "+VERSION+" is required.");
+        }
+        int end = buffer.limit() - 8;
+        CRC32 checksum = new CRC32();
+        byte[] chunk = new byte[65536];
+        for (int position = 0; position < end; position += chunk.length) {
+            int length = Math.min(chunk.length, end - position);
+            buffer.position(position);
+            buffer.get(chunk, 0, length);
+            checksum.update(chunk, 0, length);
+        }
+        if (buffer.getLong(end) != checksum.getValue()) {
+            throw new IOException(file+" is corrupt; its checksum does not match its contents.");
+        }
+
+        try {
+            buffer.position(8);
+            byte[] sourceBytes = new byte[buffer.getShort() & 0xffff];
+            buffer.get(sourceBytes);
+            if (!source.equals(new String(sourceBytes, UTF_8))) {
+                throw new IOException(file+" was saved for a different account or set of regions.");
+            }
+            long loadedAt = buffer.getLong();
+            int count = buffer.getInt();
+            Reader reader = new Reader(buffer);
+            List<JSONObject> instances = new ArrayList<JSONObject>(count);
+            for (int i = 0; i < count; i++) {
+                instances.add((JSONObject)reader.readValue());
+            }
+            if (buffer.position() != end) {
+                throw new IOException(file+" is corrupt; it has trailing data.");
+            }
+            return new AmazonEC2Inventory(instances, loadedAt, generation, indexedKeys);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file+" is corrupt; it ends unexpectedly.");
+        } catch (ClassCastException e) {
+            throw new IOException(file+" is corrupt; it holds a value that is not an instance.");
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Encodes values, writing each distinct string once.
+     */
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<String,Integer> strings = new HashMap<String,Integer>();
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject)value;
+                out.writeByte(OBJECT);
+                writeVarint(object.length());
+                Iterator<?> keys = object.keys();
+                while (keys.hasNext()) {
+                    String key = (String)keys.next();
+                    writeString(key);
+                    writeValue(object.opt(key));
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray)value;
+                out.writeByte(ARRAY);
+                writeVarint(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    writeValue(array.opt(i));
+                }
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer)value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long)value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double)value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(((Boolean)value) ? TRUE : FALSE);
+            } else if (value == null || JSONObject.NULL.equals(value)) {
+                out.writeByte(NULL);
+            } else {
+                out.writeByte(STRING);
+                writeString(value.toString());
+            }
+        }
+
+        /**
+         * Writes the index of a string already written, plus one, or 0 followed by a new string.
+         */
+        private void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarint(index + 1);
+            } else {
+                strings.put(value, strings.size());
+                byte[] bytes = value.getBytes(UTF_8);
+                writeVarint(0);
+                writeVarint(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+    }
+
+    /**
+     * Decodes the values written by Writer.
+     */
+    private static class Reader {
+        private final MappedByteBuffer buffer;
+        private final List<String> strings = new ArrayList<String>();
+        private byte[] bytes = new byte[256];
+
+        private Reader(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private Object readValue() throws IOException {
+            byte tag = buffer.get();
+            switch (tag) {
+                case OBJECT:
+                    JSONObject object = new JSONObject();
+                    for (int i = readVarint(); i > 0; i--) {
+                        String key = readString();
+                        object.put(key, readValue());
+                    }
+                    return object;
+                case ARRAY:
+                    JSONArray array = new JSONArray();
+                    for (int i = readVarint(); i > 0; i--) {
+                        array.put(readValue());
+                    }
+                    return array;
+                case STRING:
+                    return readString();
+                case INTEGER:
+                    return buffer.getInt();
+                case LONG:
+                    return buffer.getLong();
+                case DOUBLE:
+                    return buffer.getDouble();
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case NULL:
+                    return JSONObject.NULL;
+                default:
+                    throw new IOException("The inventory snapshot is corrupt; it holds an unknown "
+                        + "value type "+tag+".");
+            }
+        }
+
+        private String readString() throws IOException {
+            int reference = readVarint();
+            if (reference > 0) {
+                if (reference > strings.size()) {
+                    throw new IOException("The inventory snapshot is corrupt; it refers to an "
+                        + "unknown string.");
+                }
+                return strings.get(reference - 1);
+            }
+            int length = readVarint();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            String value = new String(bytes, 0, length, UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("The inventory snapshot is corrupt; it holds a malformed number.");
+        }
+    }
+
+}
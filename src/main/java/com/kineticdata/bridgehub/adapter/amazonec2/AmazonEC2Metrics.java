@@ -0,0 +1,309 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and counters describing where the adapter spends its time.
+ *
+ * Timers cover each phase of a request to EC2 (signing, the HTTP round trip up to the response
+ * headers, and streaming the body through the parser) and each phase and operation of a bridge
+ * call (filtering, record mapping, and count, retrieve and search as a whole).  Each timer is a
+ * log-linear histogram of microseconds with eight sub-buckets per power of two, so percentiles
+ * are accurate to within 12.5%, and recording a sample is a handful of atomic increments with no
+ * locking or allocation.  The metrics are read with getCounters() and getTimers(), or over JMX
+ * once registered.
+ */
+public class AmazonEC2Metrics implements AmazonEC2MetricsMXBean {
+
+    /** The domain of the object names the metrics are registered under. */
+    public static final String JMX_DOMAIN = "com.kineticdata.bridgehub.adapter.amazonec2";
+
+    public enum Timer {
+        SIGN("phase.sign"),
+        HTTP("phase.http"),
+        PARSE("phase.parse"),
+        FILTER("phase.filter"),
+        MAP("phase.map"),
+        COUNT("operation.count"),
+        RETRIEVE("operation.retrieve"),
+        SEARCH("operation.search");
+
+        private final String name;
+
+        private Timer(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    public enum Counter {
+        REQUESTS("requests"),
+        RETRIES("retries"),
+        THROTTLED_REQUESTS("throttledRequests"),
+        FAILED_REQUESTS("failedRequests"),
+        COALESCED_REQUESTS("coalescedRequests"),
+        BYTES_RECEIVED("bytesReceived"),
+        INSTANCES_SCANNED("instancesScanned"),
+        INSTANCES_RETURNED("instancesReturned"),
+        CACHE_HITS("cacheHits"),
+        CACHE_MISSES("cacheMisses"),
+        BATCHED_RETRIEVES("batchedRetrieves");
+
+        private final String name;
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final Histogram[] timers = new Histogram[Timer.values().length];
+    private ObjectName objectName;
+
+    public AmazonEC2Metrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the start, a System.nanoTime() value.
+     */
+    public void record(Timer timer, long startNanos) {
+        timers[timer.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Records a duration that was measured in pieces, such as filtering spread across a response.
+     */
+    public void recordNanos(Timer timer, long nanos) {
+        timers[timer.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    public void add(Counter counter, long amount) {
+        if (amount != 0) {
+            counters.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    @Override
+    public Map<String,Long> getCounters() {
+        Map<String,Long> result = new LinkedHashMap<String,Long>();
+        for (Counter counter : Counter.values()) {
+            result.put(counter.getName(), counters.get(counter.ordinal()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public Map<String,TimerSnapshot> getTimers() {
+        Map<String,TimerSnapshot> result = new LinkedHashMap<String,TimerSnapshot>();
+        for (Timer timer : Timer.values()) {
+            result.put(timer.getName(), timers[timer.ordinal()].snapshot());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (Histogram histogram : timers) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under the given name.  Failing to
+     * register only disables the JMX export, so it is logged rather than thrown.
+     */
+    public synchronized void register(String name) {
+        unregister();
+        try {
+            ObjectName candidate = new ObjectName(JMX_DOMAIN+":type=AmazonEC2Adapter,name="+ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+            this.objectName = candidate;
+        } catch (JMException e) {
+            AmazonEC2Adapter.logger.warn("Unable to register the Amazon EC2 adapter metrics with JMX.", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            AmazonEC2Adapter.logger.warn("Unable to unregister the Amazon EC2 adapter metrics from JMX.", e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * A lock-free log-linear histogram of non-negative values.
+     */
+    private static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        private TimerSnapshot snapshot() {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long maximum = max.get();
+            return new TimerSnapshot(total, (total == 0) ? 0 : sum.get() / total,
+                percentile(counts, total, 0.50, maximum), percentile(counts, total, 0.90, maximum),
+                percentile(counts, total, 0.99, maximum), maximum);
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the percentile, or the maximum if it is
+         * lower.
+         */
+        private static long percentile(long[] counts, long total, double percentile, long maximum) {
+            long rank = (long)Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(maximum, lowerBound(i + 1) - 1);
+                }
+            }
+            return maximum;
+        }
+
+        /**
+         * Values below SUB_BUCKETS have a bucket each; above that, each power of two is split
+         * into SUB_BUCKETS buckets by the bits following the leading one.
+         */
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int)value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int)((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long lowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            if (exponent > 62) {
+                return Long.MAX_VALUE;
+            }
+            return (1L << exponent) | ((long)(index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+        }
+    }
+
+    /**
+     * The distribution of a timer's samples, in microseconds.
+     */
+    public static class TimerSnapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        public TimerSnapshot(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count="+count+" mean="+mean+"us p50="+p50+"us p90="+p90+"us p99="+p99
+                +"us max="+max+"us";
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.Map;
+
+/**
+ * The management interface through which the adapter's metrics are exported over JMX.
+ */
+public interface AmazonEC2MetricsMXBean {
+
+    /**
+     * The value of each counter, by name.
+     */
+    Map<String,Long> getCounters();
+
+    /**
+     * The latency distribution of each phase and operation, by name.
+     */
+    Map<String,AmazonEC2Metrics.TimerSnapshot> getTimers();
+
+    /**
+     * Clears every counter and timer.
+     */
+    void reset();
+
+}
@@ -0,0 +1,122 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lazily walks the pages of a DescribeInstances result by following NextToken.
+ *
+ * Each call to next() or nextAsync() issues one request and passes its instances to the given
+ * handler, so callers that stop iterating once they have what they need never download the
+ * remaining pages.
+ * Requests that name specific instances (InstanceId.N) cannot be paginated by EC2 and are fetched
+ * as a single page.
+ */
+public class AmazonEC2PageIterator {
+
+    /** The bounds EC2 places on MaxResults. */
+    public static final int MIN_PAGE_SIZE = 5;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final AmazonEC2Client client;
+    private final SortedMap<String,String> parameters;
+    private final boolean paginated;
+    private int pageSize;
+    private String nextToken;
+    private boolean exhausted = false;
+
+    /**
+     * @param startToken the EC2 NextToken to resume from, or null to start at the first page
+     * @param pageSize the number of instances to request per page, clamped to the EC2 bounds
+     */
+    public AmazonEC2PageIterator(AmazonEC2Client client, SortedMap<String,String> parameters,
+        String startToken, int pageSize
+    ) {
+        this.client = client;
+        this.parameters = parameters;
+        this.paginated = !hasInstanceIds(parameters);
+        this.nextToken = startToken;
+        setPageSize(pageSize);
+    }
+
+    public boolean hasNext() {
+        return !exhausted;
+    }
+
+    /**
+     * Fetches the next page, passing each of its instances to the handler.
+     */
+    public Page next(AmazonEC2ResponseParser.ItemHandler handler) throws BridgeError {
+        return AmazonEC2Futures.await(nextAsync(handler));
+    }
+
+    /**
+     * Starts fetching the next page.  The following page may only be requested once the returned
+     * future has completed.
+     */
+    public CompletableFuture<Page> nextAsync(AmazonEC2ResponseParser.ItemHandler handler) {
+        if (exhausted) {
+            throw new IllegalStateException("There are no more pages of instances.");
+        }
+        SortedMap<String,String> pageParameters = new TreeMap<String,String>(parameters);
+        if (paginated) {
+            pageParameters.put("MaxResults", String.valueOf(pageSize));
+            if (nextToken != null) {
+                pageParameters.put("NextToken", nextToken);
+            }
+        }
+        final String requestToken = nextToken;
+        return client.describeInstancesAsync(pageParameters, AmazonEC2ResponseParser.DESCRIBE_INSTANCES, handler)
+            .thenApply(responseToken -> {
+                nextToken = responseToken;
+                exhausted = !paginated || responseToken == null;
+                return new Page(requestToken, responseToken);
+            });
+    }
+
+    /**
+     * Changes the number of instances requested by subsequent pages.
+     */
+    public final void setPageSize(int pageSize) {
+        this.pageSize = Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, pageSize));
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    static boolean hasInstanceIds(SortedMap<String,String> parameters) {
+        for (String name : parameters.keySet()) {
+            if (name.startsWith("InstanceId.")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The tokens needed to request a fetched page again or to continue after it.
+     */
+    public static class Page {
+        private final String requestToken;
+        private final String nextToken;
+
+        public Page(String requestToken, String nextToken) {
+            this.requestToken = requestToken;
+            this.nextToken = nextToken;
+        }
+
+        /** The token this page was requested with (null for the first page). */
+        public String getRequestToken() {
+            return requestToken;
+        }
+
+        /** The token for the following page, or null if this is the last page. */
+        public String getNextToken() {
+            return nextToken;
+        }
+    }
+
+}
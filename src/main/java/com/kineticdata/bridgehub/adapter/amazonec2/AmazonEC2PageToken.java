@@ -0,0 +1,59 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.UnsupportedEncodingException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Opaque bridge page token identifying where the next page of search results begins.
+ *
+ * A position is the EC2 NextToken of the DescribeInstances page that contains the next record
+ * (empty for the first page) plus the number of matching instances on that page that have already
+ * been returned.  Resuming from a token only requests pages from that point on.
+ */
+public class AmazonEC2PageToken {
+
+    private final String nextToken;
+    private final int skip;
+
+    public AmazonEC2PageToken(String nextToken, int skip) {
+        this.nextToken = nextToken;
+        this.skip = skip;
+    }
+
+    /** The EC2 NextToken to request, or null for the first page. */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /** The number of matching instances to skip within the requested page. */
+    public int getSkip() {
+        return skip;
+    }
+
+    public String encode() {
+        String value = skip + ":" + (nextToken == null ? "" : nextToken);
+        return Base64.encodeBase64URLSafeString(AmazonEC2Signer.utf8(value));
+    }
+
+    /**
+     * Decodes a token produced by encode(), returning null if the token is null or empty.
+     */
+    public static AmazonEC2PageToken decode(String token) throws BridgeError {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        try {
+            String value = new String(Base64.decodeBase64(token), "UTF-8");
+            int separator = value.indexOf(':');
+            int skip = Integer.parseInt(value.substring(0, separator));
+            String nextToken = value.substring(separator + 1);
+            return new AmazonEC2PageToken(nextToken.isEmpty() ? null : nextToken, skip);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("The UTF-8 charset is not available.", e);
+        } catch (RuntimeException e) {
+            throw new BridgeError("Invalid page token '"+token+"'.", e);
+        }
+    }
+
+}
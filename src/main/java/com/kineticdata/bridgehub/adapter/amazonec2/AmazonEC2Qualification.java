@@ -0,0 +1,650 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import com.kineticdata.bridgehub.adapter.QualificationParser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+
+/**
+ * A qualification compiled into a predicate tree.
+ *
+ * Qualifications are comparisons of a quoted key with a quoted value, combined with AND, OR, NOT
+ * and parentheses:
+ *
+ *   "instanceState"="running" AND ("tag:Env"="dev" OR "instanceType"^="t2.")
+ *
+ * The operators are = (equals), != (does not equal), ^= (starts with), $= (ends with) and *=
+ * (contains).  Comparisons that follow each other without an operator (or separated by a comma)
+ * are ANDed, so the original "key"="value" "key"="value" form still works, and a lone "*" matches
+ * every instance.  Keys are resolved by AmazonEC2InstanceAttributes.
+ *
+ * Qualifications that do not parse are read the way the adapter originally read them, as
+ * successive pairs of quoted strings with anything between them ignored, so "instanceId":"i-1"
+ * still means "instanceId"="i-1".
+ *
+ * Parameter references (<%=parameter["Name"]%>) may appear anywhere inside a quoted key or value,
+ * or in place of one.  They are kept in the compiled qualification and only substituted by
+ * bind(), so one compiled qualification serves every request made with the same template and a
+ * parameter value can never change the structure of the qualification.
+ */
+public class AmazonEC2Qualification {
+
+    private static final Pattern PARAMETER_PATTERN = Pattern.compile(QualificationParser.PARAMETER_PATTERN);
+
+    /** The comparisons a qualification can make between a key and a value. */
+    public enum Operator {
+        EQUALS("="),
+        NOT_EQUALS("!="),
+        STARTS_WITH("^="),
+        ENDS_WITH("$="),
+        CONTAINS("*=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        boolean test(String actual, String expected) {
+            switch (this) {
+                case EQUALS: return expected.equals(actual);
+                case NOT_EQUALS: return !expected.equals(actual);
+                case STARTS_WITH: return actual != null && actual.startsWith(expected);
+                case ENDS_WITH: return actual != null && actual.endsWith(expected);
+                default: return actual != null && actual.contains(expected);
+            }
+        }
+    }
+
+    private final String template;
+    private final Node root;
+    /** The bound predicate when the template has no parameters, since binding cannot change it. */
+    private final Predicate constant;
+
+    private AmazonEC2Qualification(String template, Node root) throws BridgeError {
+        this.template = template;
+        this.root = root;
+        this.constant = root.isConstant() ? root.bind(Collections.<String,String>emptyMap()) : null;
+    }
+
+    /**
+     * Parses the qualification template, which may contain parameter references.
+     */
+    public static AmazonEC2Qualification compile(String template) throws BridgeError {
+        String query = (template == null) ? "" : template;
+        Node root;
+        try {
+            root = new Parser(query).parse();
+        } catch (BridgeError e) {
+            try {
+                root = new Parser(query).parseLegacy();
+            } catch (BridgeError legacyError) {
+                root = null;
+            }
+            if (root == null) {
+                throw e;
+            }
+            AmazonEC2Adapter.logger.debug("Read the qualification as quoted key and value pairs: "+query);
+        }
+        return new AmazonEC2Qualification(query, root);
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Substitutes the request parameters into the qualification.
+     */
+    public Predicate bind(Map<String,String> parameters) throws BridgeError {
+        return (constant != null) ? constant : root.bind(parameters);
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * PREDICATES
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * A bound qualification, or part of one, evaluated against instance items.
+     */
+    public interface Predicate {
+        boolean matches(JSONObject instance);
+    }
+
+    /** Matches every instance. */
+    public static final Predicate ALL = new Predicate() {
+        @Override
+        public boolean matches(JSONObject instance) {
+            return true;
+        }
+    };
+
+    public static class And implements Predicate {
+        private final Predicate[] operands;
+
+        public And(List<Predicate> operands) {
+            this.operands = operands.toArray(new Predicate[operands.size()]);
+        }
+
+        public List<Predicate> getOperands() {
+            return Collections.unmodifiableList(Arrays.asList(operands));
+        }
+
+        @Override
+        public boolean matches(JSONObject instance) {
+            for (int i = 0; i < operands.length; i++) {
+                if (!operands[i].matches(instance)) return false;
+            }
+            return true;
+        }
+    }
+
+    public static class Or implements Predicate {
+        private final Predicate[] operands;
+
+        public Or(List<Predicate> operands) {
+            this.operands = operands.toArray(new Predicate[operands.size()]);
+        }
+
+        public List<Predicate> getOperands() {
+            return Collections.unmodifiableList(Arrays.asList(operands));
+        }
+
+        @Override
+        public boolean matches(JSONObject instance) {
+            for (int i = 0; i < operands.length; i++) {
+                if (operands[i].matches(instance)) return true;
+            }
+            return false;
+        }
+    }
+
+    public static class Not implements Predicate {
+        private final Predicate operand;
+
+        public Not(Predicate operand) {
+            this.operand = operand;
+        }
+
+        public Predicate getOperand() {
+            return operand;
+        }
+
+        @Override
+        public boolean matches(JSONObject instance) {
+            return !operand.matches(instance);
+        }
+    }
+
+    /**
+     * Compares the value of an instance attribute with a bound value.
+     */
+    public static class Comparison implements Predicate {
+        private final AmazonEC2InstanceAttributes.Attribute attribute;
+        private final Operator operator;
+        private final String value;
+
+        public Comparison(String key, Operator operator, String value) {
+            this.attribute = AmazonEC2InstanceAttributes.attribute(key);
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return attribute.getKey();
+        }
+
+        public Operator getOperator() {
+            return operator;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /** The top level element of the instance item compared. */
+        public String getElement() {
+            return attribute.getElement();
+        }
+
+        @Override
+        public boolean matches(JSONObject instance) {
+            return operator.test(attribute.valueOf(instance), value);
+        }
+    }
+
+    /**
+     * Adds the top level elements of the instance item that the predicate reads to the set.
+     */
+    public static void addElements(Predicate predicate, Set<String> elements) {
+        if (predicate instanceof Comparison) {
+            elements.add(((Comparison)predicate).getElement());
+        } else if (predicate instanceof Not) {
+            addElements(((Not)predicate).getOperand(), elements);
+        } else if (predicate instanceof And) {
+            for (Predicate operand : ((And)predicate).getOperands()) addElements(operand, elements);
+        } else if (predicate instanceof Or) {
+            for (Predicate operand : ((Or)predicate).getOperands()) addElements(operand, elements);
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * COMPILED NODES
+     *--------------------------------------------------------------------------------------------*/
+
+    private static abstract class Node {
+        abstract Predicate bind(Map<String,String> parameters) throws BridgeError;
+        abstract boolean isConstant();
+    }
+
+    private static class AllNode extends Node {
+        @Override
+        Predicate bind(Map<String,String> parameters) {
+            return ALL;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    private static class BooleanNode extends Node {
+        private final boolean and;
+        private final List<Node> operands;
+
+        private BooleanNode(boolean and, List<Node> operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        Predicate bind(Map<String,String> parameters) throws BridgeError {
+            List<Predicate> predicates = new ArrayList<Predicate>(operands.size());
+            for (Node operand : operands) {
+                Predicate predicate = operand.bind(parameters);
+                // "*" within a conjunction adds nothing, and within a disjunction matches everything
+                if (predicate == ALL) {
+                    if (and) continue;
+                    return ALL;
+                }
+                predicates.add(predicate);
+            }
+            if (predicates.isEmpty()) {
+                return ALL;
+            } else if (predicates.size() == 1) {
+                return predicates.get(0);
+            }
+            return and ? new And(predicates) : new Or(predicates);
+        }
+
+        @Override
+        boolean isConstant() {
+            for (Node operand : operands) {
+                if (!operand.isConstant()) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class NotNode extends Node {
+        private final Node operand;
+
+        private NotNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Predicate bind(Map<String,String> parameters) throws BridgeError {
+            return new Not(operand.bind(parameters));
+        }
+
+        @Override
+        boolean isConstant() {
+            return operand.isConstant();
+        }
+    }
+
+    private static class ComparisonNode extends Node {
+        private final Template key;
+        private final Operator operator;
+        private final Template value;
+        /** The comparison when neither side has parameters. */
+        private final Comparison constant;
+
+        private ComparisonNode(Template key, Operator operator, Template value) {
+            this.key = key;
+            this.operator = operator;
+            this.value = value;
+            this.constant = isConstant()
+                ? new Comparison(key.literal(), operator, value.literal())
+                : null;
+        }
+
+        @Override
+        Predicate bind(Map<String,String> parameters) throws BridgeError {
+            if (constant != null) {
+                return constant;
+            }
+            return new Comparison(key.bind(parameters), operator, value.bind(parameters));
+        }
+
+        @Override
+        final boolean isConstant() {
+            return key.isConstant() && value.isConstant();
+        }
+    }
+
+    /**
+     * A quoted string, or a bare parameter reference, split into literal text and parameter names.
+     */
+    private static class Template {
+        private final List<String> segments = new ArrayList<String>();
+        /** Whether the segment at the same index is a parameter name rather than literal text. */
+        private final List<Boolean> parameters = new ArrayList<Boolean>();
+
+        private void addLiteral(String text) {
+            segments.add(text);
+            parameters.add(Boolean.FALSE);
+        }
+
+        private void addParameter(String name) {
+            segments.add(name);
+            parameters.add(Boolean.TRUE);
+        }
+
+        private boolean isConstant() {
+            return !parameters.contains(Boolean.TRUE);
+        }
+
+        private String literal() {
+            StringBuilder builder = new StringBuilder();
+            for (String segment : segments) {
+                builder.append(segment);
+            }
+            return builder.toString();
+        }
+
+        private String bind(Map<String,String> values) throws BridgeError {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < segments.size(); i++) {
+                if (!parameters.get(i)) {
+                    builder.append(segments.get(i));
+                    continue;
+                }
+                String name = segments.get(i);
+                if (values == null) {
+                    throw new BridgeError("Unable to parse qualification, the '"+name
+                        +"' parameter was referenced but no parameters were provided.");
+                }
+                String value = values.get(name);
+                if (value == null) {
+                    throw new BridgeError("Unable to parse qualification, the '"+name
+                        +"' parameter was referenced but not provided.");
+                }
+                builder.append(value);
+            }
+            return builder.toString();
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * PARSER
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Recursive descent parser for:
+     *
+     *   or         := and (("OR" | "||") and)*
+     *   and        := unary (["AND" | "&&" | ","] unary)*
+     *   unary      := ("NOT" | "!") unary | "(" or ")" | "*" | comparison
+     *   comparison := string operator string
+     */
+    private static class Parser {
+        private final String query;
+        private final Matcher parameterMatcher;
+        private int position = 0;
+
+        private Parser(String query) {
+            this.query = query;
+            this.parameterMatcher = PARAMETER_PATTERN.matcher(query);
+        }
+
+        private Node parse() throws BridgeError {
+            skipWhitespace();
+            if (position == query.length()) {
+                return new AllNode();
+            }
+            Node node = parseOr();
+            skipWhitespace();
+            if (position < query.length()) {
+                throw error("unexpected '"+query.charAt(position)+"'");
+            }
+            return node;
+        }
+
+        /**
+         * Reads the qualification as successive key and value pairs of quoted strings, skipping
+         * anything between them, with a lone "*" key matching every instance.  Returns null if the
+         * quoted strings do not pair up.
+         */
+        private Node parseLegacy() throws BridgeError {
+            position = 0;
+            List<Node> operands = new ArrayList<Node>();
+            Template key;
+            while ((key = nextQuotedString()) != null) {
+                if (key.isConstant() && "*".equals(key.literal())) {
+                    operands.add(new AllNode());
+                    continue;
+                }
+                Template value = nextQuotedString();
+                if (value == null) {
+                    return null;
+                }
+                operands.add(new ComparisonNode(key, Operator.EQUALS, value));
+            }
+            if (operands.isEmpty()) {
+                return null;
+            }
+            return operands.size() == 1 ? operands.get(0) : new BooleanNode(true, operands);
+        }
+
+        /**
+         * Skips to the next double quoted string and reads it, or returns null if there is none.
+         */
+        private Template nextQuotedString() throws BridgeError {
+            while (position < query.length() && query.charAt(position) != '"') {
+                // A bare parameter reference is skipped whole, as its name is quoted
+                if (query.charAt(position) == '<' && lookingAtParameter()) {
+                    position = parameterMatcher.end();
+                } else {
+                    position++;
+                }
+            }
+            return (position < query.length()) ? parseString() : null;
+        }
+
+        private Node parseOr() throws BridgeError {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseAnd());
+            while (acceptWord("OR") || accept("||")) {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new BooleanNode(false, operands);
+        }
+
+        private Node parseAnd() throws BridgeError {
+            List<Node> operands = new ArrayList<Node>();
+            operands.add(parseUnary());
+            while (true) {
+                if (acceptWord("AND") || accept("&&") || accept(",")) {
+                    operands.add(parseUnary());
+                } else if (startsOperand()) {
+                    operands.add(parseUnary());
+                } else {
+                    break;
+                }
+            }
+            return operands.size() == 1 ? operands.get(0) : new BooleanNode(true, operands);
+        }
+
+        private Node parseUnary() throws BridgeError {
+            if (acceptWord("NOT") || (!peek("!=") && accept("!"))) {
+                return new NotNode(parseUnary());
+            }
+            if (accept("(")) {
+                Node node = parseOr();
+                if (!accept(")")) {
+                    throw error("expected ')'");
+                }
+                return node;
+            }
+            if (accept("*")) {
+                return new AllNode();
+            }
+            Template key = parseString();
+            if (key == null) {
+                throw error(position < query.length()
+                    ? "expected a quoted key at '"+query.charAt(position)+"'"
+                    : "expected a quoted key");
+            }
+            Operator operator = parseOperator();
+            if (operator == null) {
+                if (key.isConstant() && "*".equals(key.literal())) {
+                    return new AllNode();
+                }
+                throw error("expected an operator after the key");
+            }
+            Template value = parseString();
+            if (value == null) {
+                throw error("expected a quoted value");
+            }
+            return new ComparisonNode(key, operator, value);
+        }
+
+        private Operator parseOperator() {
+            // Two character operators first, so "!=" is not read as "!"
+            for (Operator operator : new Operator[] {
+                Operator.NOT_EQUALS, Operator.STARTS_WITH, Operator.ENDS_WITH, Operator.CONTAINS,
+                Operator.EQUALS
+            }) {
+                if (accept(operator.getSymbol())) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads a double quoted string (backslash escapes the next character) or a bare parameter
+         * reference, or returns null if neither is next.
+         */
+        private Template parseString() throws BridgeError {
+            skipWhitespace();
+            Template template = new Template();
+            if (acceptParameter(template)) {
+                return template;
+            }
+            if (position >= query.length() || query.charAt(position) != '"') {
+                return null;
+            }
+            int start = ++position;
+            StringBuilder literal = new StringBuilder();
+            while (position < query.length()) {
+                char c = query.charAt(position);
+                if (c == '"') {
+                    position++;
+                    if (literal.length() > 0) template.addLiteral(literal.toString());
+                    return template;
+                } else if (c == '\\' && position + 1 < query.length()) {
+                    literal.append(query.charAt(position + 1));
+                    position += 2;
+                } else if (c == '<' && lookingAtParameter()) {
+                    if (literal.length() > 0) template.addLiteral(literal.toString());
+                    literal.setLength(0);
+                    acceptParameter(template);
+                } else {
+                    literal.append(c);
+                    position++;
+                }
+            }
+            position = start - 1;
+            throw error("unterminated quoted string");
+        }
+
+        private boolean lookingAtParameter() {
+            parameterMatcher.region(position, query.length());
+            return parameterMatcher.lookingAt();
+        }
+
+        private boolean acceptParameter(Template template) {
+            if (position < query.length() && query.charAt(position) == '<' && lookingAtParameter()) {
+                template.addParameter(parameterMatcher.group(1));
+                position = parameterMatcher.end();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean startsOperand() {
+            skipWhitespace();
+            if (position >= query.length()) {
+                return false;
+            }
+            char c = query.charAt(position);
+            return c == '"' || c == '(' || c == '*' || (c == '!' && !peek("!="))
+                || (c == '<' && lookingAtParameter()) || peekWord("NOT");
+        }
+
+        private boolean peek(String token) {
+            skipWhitespace();
+            return query.startsWith(token, position);
+        }
+
+        private boolean accept(String token) {
+            if (peek(token)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean peekWord(String word) {
+            skipWhitespace();
+            int end = position + word.length();
+            return query.regionMatches(true, position, word, 0, word.length())
+                && (end == query.length() || !Character.isLetterOrDigit(query.charAt(end)));
+        }
+
+        private boolean acceptWord(String word) {
+            if (peekWord(word)) {
+                position += word.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+                position++;
+            }
+        }
+
+        private BridgeError error(String problem) {
+            return new BridgeError("Unable to parse qualification, "+problem+" at position "
+                +position+" of: "+query);
+        }
+    }
+
+}
@@ -0,0 +1,312 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.json.JSONObject;
+
+/**
+ * Translates a qualification into DescribeInstances request parameters.
+ *
+ * Qualification templates are compiled once (see AmazonEC2Qualification) and kept in a bounded
+ * least recently used cache, so a request only has to bind its parameters to the compiled
+ * qualification.  Top level conjuncts that have a server side equivalent are sent to EC2 as
+ * Filter.N.Name/Filter.N.Value.M parameters so that only matching instances are returned: equality
+ * comparisons, disjunctions of equality comparisons on one key, and prefix, suffix and contains
+ * comparisons (as filter wildcards).  The remaining conjuncts are evaluated locally against the
+ * returned instances.
+ *
+ * Instance ids are filtered with the instance-id filter rather than InstanceId.N, because EC2 fails
+ * an InstanceId.N request outright if any of the ids does not exist (in the region queried).
+ * Batched retrieves (see AmazonEC2RetrieveBatcher) do use InstanceId.N, and retry without the ids
+ * EC2 reports missing.
+ */
+public class AmazonEC2QueryTranslator {
+
+    public static final String INSTANCE_ID = "instanceId";
+
+    /** The number of compiled qualification templates kept. */
+    public static final int DEFAULT_CACHE_SIZE = 256;
+
+    /** Qualification key to DescribeInstances filter name. */
+    private static final Map<String,String> FILTER_NAMES = new HashMap<String,String>();
+    static {
+        FILTER_NAMES.put("architecture", "architecture");
+        FILTER_NAMES.put("availabilityZone", "availability-zone");
+        FILTER_NAMES.put("dnsName", "dns-name");
+        FILTER_NAMES.put("imageId", "image-id");
+        FILTER_NAMES.put(INSTANCE_ID, "instance-id");
+        FILTER_NAMES.put("instanceState", "instance-state-name");
+        FILTER_NAMES.put("instanceType", "instance-type");
+        FILTER_NAMES.put("ipAddress", "ip-address");
+        FILTER_NAMES.put("keyName", "key-name");
+        FILTER_NAMES.put("placement.availabilityZone", "availability-zone");
+        FILTER_NAMES.put("platform", "platform");
+        FILTER_NAMES.put("privateDnsName", "private-dns-name");
+        FILTER_NAMES.put("privateIpAddress", "private-ip-address");
+        FILTER_NAMES.put("rootDeviceType", "root-device-type");
+        FILTER_NAMES.put("subnetId", "subnet-id");
+        FILTER_NAMES.put("tenancy", "tenancy");
+        FILTER_NAMES.put("vpcId", "vpc-id");
+    }
+
+    private final Map<String,AmazonEC2Qualification> qualifications;
+
+    public AmazonEC2QueryTranslator() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    public AmazonEC2QueryTranslator(final int cacheSize) {
+        this.qualifications = new LinkedHashMap<String,AmazonEC2Qualification>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,AmazonEC2Qualification> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Binds the parameters to the (compiled) qualification template and splits the result into
+     * pushed down request parameters and a predicate that has to be evaluated locally.
+     */
+    public Translation translate(String query, Map<String,String> parameters) throws BridgeError {
+        AmazonEC2Qualification.Predicate predicate = compile(query).bind(parameters);
+
+        List<AmazonEC2Qualification.Predicate> conjuncts = (predicate instanceof AmazonEC2Qualification.And)
+            ? ((AmazonEC2Qualification.And)predicate).getOperands()
+            : Collections.singletonList(predicate);
+
+        SortedMap<String,String> requestParameters = new TreeMap<String,String>();
+        List<AmazonEC2Qualification.Comparison> conditions = new ArrayList<AmazonEC2Qualification.Comparison>();
+        List<AmazonEC2Qualification.Predicate> local = new ArrayList<AmazonEC2Qualification.Predicate>();
+        Set<String> pushedKeys = new HashSet<String>();
+        int filterIndex = 0;
+        boolean conditionsOnly = true;
+
+        for (AmazonEC2Qualification.Predicate conjunct : conjuncts) {
+            if (conjunct == AmazonEC2Qualification.ALL) {
+                continue;
+            }
+            AmazonEC2Qualification.Comparison comparison = (conjunct instanceof AmazonEC2Qualification.Comparison)
+                ? (AmazonEC2Qualification.Comparison)conjunct
+                : null;
+            if (comparison != null && comparison.getOperator() == AmazonEC2Qualification.Operator.EQUALS) {
+                conditions.add(comparison);
+            } else {
+                conditionsOnly = false;
+            }
+
+            String key = pushdownKey(conjunct);
+            // Conjuncts are ANDed together, but multiple values for one EC2 filter are ORed, so only
+            // the first conjunct on a key is pushed down and any others are checked locally
+            if (key == null || pushedKeys.contains(key)) {
+                local.add(conjunct);
+                continue;
+            }
+            List<String> values = pushdownValues(conjunct);
+            filterIndex++;
+            requestParameters.put("Filter."+filterIndex+".Name", filterName(key));
+            for (int i = 0; i < values.size(); i++) {
+                requestParameters.put("Filter."+filterIndex+".Value."+(i + 1), values.get(i));
+            }
+            pushedKeys.add(key);
+        }
+
+        AmazonEC2Qualification.Predicate localPredicate;
+        if (local.isEmpty()) {
+            localPredicate = null;
+        } else if (local.size() == 1) {
+            localPredicate = local.get(0);
+        } else {
+            localPredicate = new AmazonEC2Qualification.And(local);
+        }
+        return new Translation(requestParameters, predicate, localPredicate, conditions, conditionsOnly);
+    }
+
+    /**
+     * Returns the compiled qualification for the template, compiling and caching it if needed.
+     */
+    public AmazonEC2Qualification compile(String query) throws BridgeError {
+        String template = (query == null) ? "" : query;
+        synchronized (qualifications) {
+            AmazonEC2Qualification qualification = qualifications.get(template);
+            if (qualification != null) {
+                return qualification;
+            }
+        }
+        // Compiled outside the lock; a template compiled twice concurrently is harmless
+        AmazonEC2Qualification qualification = AmazonEC2Qualification.compile(template);
+        synchronized (qualifications) {
+            qualifications.put(template, qualification);
+        }
+        return qualification;
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    static String filterName(String key) {
+        if (key.startsWith(AmazonEC2InstanceAttributes.TAG_PREFIX)
+            && key.length() > AmazonEC2InstanceAttributes.TAG_PREFIX.length()
+        ) {
+            return key;
+        }
+        return FILTER_NAMES.get(key);
+    }
+
+    /**
+     * Returns the key of the conjunct if EC2 can evaluate it exactly, otherwise null.
+     */
+    private static String pushdownKey(AmazonEC2Qualification.Predicate conjunct) {
+        if (conjunct instanceof AmazonEC2Qualification.Comparison) {
+            AmazonEC2Qualification.Comparison comparison = (AmazonEC2Qualification.Comparison)conjunct;
+            switch (comparison.getOperator()) {
+                case EQUALS:
+                case STARTS_WITH:
+                case ENDS_WITH:
+                case CONTAINS:
+                    return (filterName(comparison.getKey()) != null) ? comparison.getKey() : null;
+                default:
+                    return null;
+            }
+        }
+        if (conjunct instanceof AmazonEC2Qualification.Or) {
+            String key = null;
+            for (AmazonEC2Qualification.Predicate operand : ((AmazonEC2Qualification.Or)conjunct).getOperands()) {
+                if (!(operand instanceof AmazonEC2Qualification.Comparison)) {
+                    return null;
+                }
+                AmazonEC2Qualification.Comparison comparison = (AmazonEC2Qualification.Comparison)operand;
+                String operandKey = pushdownKey(comparison);
+                if (operandKey == null || (key != null && !key.equals(operandKey))) {
+                    return null;
+                }
+                key = operandKey;
+            }
+            return key;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the EC2 values (with wildcards where needed) for a conjunct that has a pushdown key.
+     */
+    private static List<String> pushdownValues(AmazonEC2Qualification.Predicate conjunct) {
+        List<String> values = new ArrayList<String>();
+        if (conjunct instanceof AmazonEC2Qualification.Or) {
+            for (AmazonEC2Qualification.Predicate operand : ((AmazonEC2Qualification.Or)conjunct).getOperands()) {
+                values.add(pushdownValue((AmazonEC2Qualification.Comparison)operand));
+            }
+        } else {
+            values.add(pushdownValue((AmazonEC2Qualification.Comparison)conjunct));
+        }
+        return values;
+    }
+
+    private static String pushdownValue(AmazonEC2Qualification.Comparison comparison) {
+        String value = comparison.getValue();
+        switch (comparison.getOperator()) {
+            case STARTS_WITH: return escapeFilterValue(value)+"*";
+            case ENDS_WITH: return "*"+escapeFilterValue(value);
+            case CONTAINS: return "*"+escapeFilterValue(value)+"*";
+            default: return escapeFilterValue(value);
+        }
+    }
+
+    /**
+     * Escapes the EC2 filter wildcard characters so values are matched literally, the same way
+     * they are when evaluated locally.
+     */
+    static String escapeFilterValue(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 4);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The result of translating a qualification.
+     */
+    public static class Translation {
+        private final SortedMap<String,String> parameters;
+        private final AmazonEC2Qualification.Predicate predicate;
+        private final AmazonEC2Qualification.Predicate localPredicate;
+        private final List<AmazonEC2Qualification.Comparison> conditions;
+        private final boolean conditionsOnly;
+
+        public Translation(SortedMap<String,String> parameters,
+            AmazonEC2Qualification.Predicate predicate, AmazonEC2Qualification.Predicate localPredicate,
+            List<AmazonEC2Qualification.Comparison> conditions, boolean conditionsOnly
+        ) {
+            this.parameters = Collections.unmodifiableSortedMap(parameters);
+            this.predicate = predicate;
+            this.localPredicate = localPredicate;
+            this.conditions = Collections.unmodifiableList(conditions);
+            this.conditionsOnly = conditionsOnly;
+        }
+
+        /** DescribeInstances parameters (excluding Action and Version), sorted by name. */
+        public SortedMap<String,String> getParameters() {
+            return parameters;
+        }
+
+        /** Whether instances returned by EC2 still have to be checked locally. */
+        public boolean hasLocalPredicate() {
+            return localPredicate != null;
+        }
+
+        /**
+         * The equality comparisons every matching instance satisfies (the top level ones), whether
+         * or not they were pushed down.
+         */
+        public List<AmazonEC2Qualification.Comparison> getConditions() {
+            return conditions;
+        }
+
+        /**
+         * The top level elements of the instance item the locally evaluated part of the
+         * qualification reads.
+         */
+        public Set<String> getLocalElements() {
+            Set<String> elements = new HashSet<String>();
+            if (localPredicate != null) {
+                AmazonEC2Qualification.addElements(localPredicate, elements);
+            }
+            return elements;
+        }
+
+        /** Whether the qualification is nothing more than the conjunction of its conditions. */
+        public boolean isConditionsOnly() {
+            return conditionsOnly;
+        }
+
+        /**
+         * Whether an instance returned by EC2 for the pushed down parameters matches.
+         */
+        public boolean matches(JSONObject instance) {
+            return localPredicate == null || localPredicate.matches(instance);
+        }
+
+        /**
+         * Whether an instance that was not filtered by EC2 (such as a cached one) matches.
+         */
+        public boolean matchesAll(JSONObject instance) {
+            return predicate.matches(instance);
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate of requests sent to Amazon EC2.
+ *
+ * EC2 meters API calls per account with a bucket of its own: a burst of up to its capacity is
+ * allowed, after which calls are admitted at its refill rate and any excess is rejected with
+ * RequestLimitExceeded.  Sizing this bucket at or below the EC2 one keeps the adapter from being
+ * throttled at all; requests are delayed here, in arrival order, instead of failing there.  Each
+ * request reserves its token immediately (the balance may go negative), so its delay is known up
+ * front and it can be scheduled rather than waited for on a thread.
+ */
+public class AmazonEC2RateLimiter {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param requestsPerSecond the sustained request rate
+     * @param burst the number of requests that may be sent at once after a quiet period
+     */
+    public AmazonEC2RateLimiter(double requestsPerSecond, int burst) {
+        this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Reserves a token for a request and returns the nanoseconds to wait before sending it.
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        tokens -= 1;
+        return (tokens >= 0) ? 0 : (long)Math.ceil(-tokens / tokensPerNano);
+    }
+
+}
@@ -0,0 +1,140 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.Record;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Builds bridge records containing only the requested fields of an instance item.
+ *
+ * A field is the name of an attribute of the instance item, a dot separated path into nested
+ * elements (placement.availabilityZone) or a tag reference (tag:Name).  Within a path, a segment
+ * applied to an array selects an element by its index, or the value of the {key, value} element
+ * with that key, so both tagSet.item.0.value and tagSet.item.Name resolve to the Name tag.  Simple
+ * values are returned as strings; objects and arrays are serialized as JSON, and only when a field
+ * asks for them.  Without requested fields, every top level attribute is returned.
+ */
+public class AmazonEC2RecordMapper {
+
+    private final List<String> fields;
+    private final String[][] paths;
+    private final AmazonEC2InstanceAttributes.Attribute[] tags;
+
+    public AmazonEC2RecordMapper(List<String> fields) {
+        this.fields = fields;
+        if (fields == null) {
+            this.paths = null;
+            this.tags = null;
+            return;
+        }
+        this.paths = new String[fields.size()][];
+        this.tags = new AmazonEC2InstanceAttributes.Attribute[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            String field = fields.get(i);
+            if (field.startsWith(AmazonEC2InstanceAttributes.TAG_PREFIX)) {
+                tags[i] = AmazonEC2InstanceAttributes.attribute(field);
+            } else {
+                paths[i] = field.split("\\.", -1);
+            }
+        }
+    }
+
+    /**
+     * The top level elements of the instance item the requested fields read, or null if every
+     * element is needed.
+     */
+    public Set<String> getElements() {
+        if (fields == null) {
+            return null;
+        }
+        Set<String> elements = new HashSet<String>();
+        for (int i = 0; i < fields.size(); i++) {
+            elements.add(tags[i] != null ? tags[i].getElement() : paths[i][0]);
+        }
+        return elements;
+    }
+
+    public Record toRecord(JSONObject instance) {
+        Map<String,Object> record = new LinkedHashMap<String,Object>();
+        if (fields == null) {
+            Iterator<?> keys = instance.keys();
+            while (keys.hasNext()) {
+                String key = (String)keys.next();
+                record.put(key, toValue(instance.opt(key)));
+            }
+        } else {
+            for (int i = 0; i < fields.size(); i++) {
+                Object value = (tags[i] != null) ? tags[i].valueOf(instance) : resolve(instance, paths[i]);
+                record.put(fields.get(i), toValue(value));
+            }
+        }
+        return new Record(record);
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static Object resolve(JSONObject instance, String[] path) {
+        Object value = instance;
+        for (int i = 0; i < path.length && value != null; i++) {
+            if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject)value;
+                // A single {key, value} element is converted to an object rather than an array
+                value = object.has(path[i]) ? object.opt(path[i]) : keyedValue(object, path[i]);
+            } else if (value instanceof JSONArray) {
+                value = element((JSONArray)value, path[i]);
+            } else {
+                value = null;
+            }
+        }
+        return value;
+    }
+
+    private static Object element(JSONArray array, String segment) {
+        if (isIndex(segment)) {
+            return array.opt(Integer.parseInt(segment));
+        }
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject element = array.optJSONObject(i);
+            Object value = (element == null) ? null : keyedValue(element, segment);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a {key, value} element if its key is the segment, otherwise null.
+     */
+    private static Object keyedValue(JSONObject element, String segment) {
+        Object key = element.opt("key");
+        if (key != null && segment.equals(key.toString())) {
+            Object value = element.opt("value");
+            return value == null ? "" : value;
+        }
+        return null;
+    }
+
+    private static boolean isIndex(String segment) {
+        if (segment.isEmpty() || segment.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (!Character.isDigit(segment.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static String toValue(Object value) {
+        return (value == null || value == JSONObject.NULL) ? null : value.toString();
+    }
+
+}
@@ -0,0 +1,197 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The regions the adapter queries, each with its own client.
+ *
+ * A call made for several regions is started in every region at once, so it takes as long as the
+ * slowest region rather than the sum of them all, and holds no thread while the regions answer.
+ * Each region must answer within the region timeout, even when it is the only one queried; a
+ * region that fails or times out is reported in the results while the other regions' results are
+ * still used, and only a call that fails in every region fails as a whole.
+ */
+public class AmazonEC2Regions {
+
+    /** The placeholder replaced by the region name in the endpoint and host properties. */
+    public static final String REGION_PLACEHOLDER = "{region}";
+
+    private final List<AmazonEC2Client> clients;
+    private final long timeoutMillis;
+
+    /**
+     * @param client the client for the first region, which owns the connection pool
+     * @param regions every region to query, the first being the client's
+     * @param endpoint the endpoint, containing REGION_PLACEHOLDER unless there is one region
+     * @param host the host, containing REGION_PLACEHOLDER unless there is one region
+     */
+    public AmazonEC2Regions(AmazonEC2Client client, List<String> regions, String endpoint,
+        String host, long timeoutMillis
+    ) {
+        List<AmazonEC2Client> regionClients = new ArrayList<AmazonEC2Client>();
+        regionClients.add(client);
+        for (String region : regions.subList(1, regions.size())) {
+            regionClients.add(client.forRegion(region,
+                endpoint.replace(REGION_PLACEHOLDER, region), host.replace(REGION_PLACEHOLDER, region)));
+        }
+        this.clients = Collections.unmodifiableList(regionClients);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the client of every region, in the configured order.
+     */
+    public List<AmazonEC2Client> getClients() {
+        return clients;
+    }
+
+    /**
+     * Starts the call in each of the clients and returns a future of the results.  The future
+     * fails with the error of the only region, or an error naming every region if the call failed
+     * in all of them.
+     */
+    public <T> CompletableFuture<Results<T>> invoke(List<AmazonEC2Client> targets, RegionCall<T> call) {
+        if (targets.size() == 1) {
+            final String region = targets.get(0).getRegion();
+            return withTimeout(targets.get(0), start(targets.get(0), call)).thenApply(result -> {
+                Results<T> results = new Results<T>();
+                results.results.put(region, result);
+                return results;
+            });
+        }
+
+        final Map<String,CompletableFuture<T>> futures = new LinkedHashMap<String,CompletableFuture<T>>();
+        for (AmazonEC2Client client : targets) {
+            futures.put(client.getRegion(), withTimeout(client, start(client, call)));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[futures.size()]))
+            .handle((ignored, failure) -> {
+                Results<T> results = new Results<T>();
+                for (Map.Entry<String,CompletableFuture<T>> entry : futures.entrySet()) {
+                    String region = entry.getKey();
+                    try {
+                        results.results.put(region, entry.getValue().join());
+                    } catch (RuntimeException e) {
+                        Throwable cause = AmazonEC2Futures.unwrap(e);
+                        results.failures.put(region, (cause instanceof BridgeError)
+                            ? (BridgeError)cause
+                            : new BridgeError("Unable to query Amazon EC2 region "+region+".", cause));
+                    }
+                }
+                return results;
+            })
+            .thenCompose(results -> {
+                if (results.results.isEmpty() && !results.failures.isEmpty()) {
+                    StringBuilder message = new StringBuilder("Unable to query any Amazon EC2 region.");
+                    for (Map.Entry<String,BridgeError> failure : results.failures.entrySet()) {
+                        message.append(" ").append(failure.getKey()).append(": ")
+                            .append(failure.getValue().getMessage());
+                    }
+                    return AmazonEC2Futures.failed(
+                        new BridgeError(message.toString(), results.failures.values().iterator().next()));
+                }
+                for (Map.Entry<String,BridgeError> failure : results.failures.entrySet()) {
+                    AmazonEC2Adapter.logger.warn("Amazon EC2 region "+failure.getKey()+" failed; its "
+                        +"instances are missing from the results.", failure.getValue());
+                }
+                return CompletableFuture.completedFuture(results);
+            });
+    }
+
+    /**
+     * Returns a future that completes as the region's does, or fails once the region timeout has
+     * passed.  The region's call is left to finish on its own.  invoke() bounds every region's call
+     * this way; calls to a region made outside invoke() are bounded with it directly.
+     */
+    public <T> CompletableFuture<T> withTimeout(AmazonEC2Client client, CompletableFuture<T> future) {
+        final String region = client.getRegion();
+        final CompletableFuture<T> bounded = new CompletableFuture<T>();
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = client.schedule(() -> bounded.completeExceptionally(new BridgeError(
+                "Amazon EC2 region "+region+" did not respond within "+timeoutMillis+" ms.")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            timeout = null;
+        }
+        final ScheduledFuture<?> scheduled = timeout;
+        future.whenComplete((result, failure) -> {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            if (failure == null) {
+                bounded.complete(result);
+            } else {
+                bounded.completeExceptionally(AmazonEC2Futures.unwrap(failure));
+            }
+        });
+        return bounded;
+    }
+
+    public void close() {
+        for (AmazonEC2Client client : clients) {
+            client.close();
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static <T> CompletableFuture<T> start(AmazonEC2Client client, RegionCall<T> call) {
+        try {
+            return call.call(client);
+        } catch (BridgeError | RuntimeException e) {
+            return AmazonEC2Futures.failed(e);
+        }
+    }
+
+    /**
+     * Splits the region property into its region names.
+     */
+    public static List<String> parseRegions(String value) {
+        List<String> regions = new ArrayList<String>();
+        if (value != null) {
+            for (String region : value.split(",")) {
+                if (!region.trim().isEmpty() && !regions.contains(region.trim())) {
+                    regions.add(region.trim());
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Starts the work done in one region.
+     */
+    public interface RegionCall<T> {
+        CompletableFuture<T> call(AmazonEC2Client client) throws BridgeError;
+    }
+
+    /**
+     * The results of the regions that answered, and the errors of those that did not, in the
+     * order the regions were configured.
+     */
+    public static class Results<T> {
+        private final Map<String,T> results = new LinkedHashMap<String,T>();
+        private final Map<String,BridgeError> failures = new LinkedHashMap<String,BridgeError>();
+
+        public Map<String,T> getResults() {
+            return results;
+        }
+
+        public Map<String,BridgeError> getFailures() {
+            return failures;
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.json.JSONObject;
+
+/**
+ * Collapses concurrent identical requests into a single request to EC2.
+ *
+ * The first caller of a request (the leader) fetches the response and is handed its items as they
+ * are parsed, so a leader that nobody joins is served exactly as an uncoalesced request: it holds
+ * one item at a time and can stop the parser early.  Callers that ask for the same request before
+ * its response starts arriving (followers) share the leader's request; only then are the items
+ * also buffered, and each follower is given them once the response has been read.  Requests are
+ * identical when they have the same request key and read the same item elements, so a count never
+ * waits on a projection and callers with different projections never see each other's items.  The
+ * items are shared between callers and must not be modified.  Nothing is kept once the request
+ * completes.
+ */
+public class AmazonEC2RequestCoalescer {
+
+    private final ConcurrentMap<String,Call> calls = new ConcurrentHashMap<String,Call>();
+    private final AmazonEC2Metrics metrics;
+
+    public AmazonEC2RequestCoalescer(AmazonEC2Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Performs the request, or joins an identical one that is already in flight.  The returned
+     * future passes each item of the response to the handler, on the thread that completes the
+     * request, and then completes with the response nextToken.  A request that fails, fails every
+     * caller with the same error.
+     *
+     * @param requestKey the normalized request (endpoint, action, version and parameters)
+     */
+    public CompletableFuture<String> execute(String requestKey,
+        final AmazonEC2ResponseParser.ItemHandler handler, Fetch fetch
+    ) {
+        final boolean counting = handler instanceof AmazonEC2ResponseParser.ItemCounter;
+        Set<String> elements = (handler instanceof AmazonEC2ResponseParser.ProjectedItemHandler)
+            ? ((AmazonEC2ResponseParser.ProjectedItemHandler)handler).getElements()
+            : null;
+        String key = requestKey+"#"+(counting ? "count" : (elements == null ? "*" : new TreeSet<String>(elements)));
+
+        Call created = new Call();
+        while (true) {
+            Call inFlight = calls.putIfAbsent(key, created);
+            if (inFlight == null) {
+                return lead(key, created, handler, counting, elements, fetch);
+            }
+            if (inFlight.join()) {
+                metrics.increment(AmazonEC2Metrics.Counter.COALESCED_REQUESTS);
+                return follow(inFlight, handler, counting);
+            }
+            // The response of the call in flight is already being read; replace it with our own
+            if (calls.replace(key, inFlight, created)) {
+                return lead(key, created, handler, counting, elements, fetch);
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private CompletableFuture<String> lead(final String key, final Call call,
+        final AmazonEC2ResponseParser.ItemHandler handler, boolean counting, Set<String> elements,
+        Fetch fetch
+    ) {
+        final AmazonEC2ResponseParser.ItemCounter counter = counting
+            ? new AmazonEC2ResponseParser.ItemCounter()
+            : null;
+        final LeaderHandler leader = counting ? null : new LeaderHandler(key, call, handler, elements);
+        CompletableFuture<String> fetched;
+        try {
+            fetched = fetch.fetch(counting ? counter : leader);
+        } catch (RuntimeException e) {
+            fetched = AmazonEC2Futures.failed(e);
+        }
+
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        fetched.whenComplete((nextToken, failure) -> {
+            // Closed and removed before the followers are released, so later callers make a new
+            // request
+            close(key, call);
+            if (failure != null) {
+                Throwable error = AmazonEC2Futures.unwrap(failure);
+                call.done.completeExceptionally(error);
+                result.completeExceptionally(error);
+                return;
+            }
+            call.nextToken = nextToken;
+            if (counting) {
+                call.count = counter.getCount();
+                ((AmazonEC2ResponseParser.ItemCounter)handler).add(call.count);
+            }
+            call.done.complete(null);
+            if (leader != null && leader.error != null) {
+                result.completeExceptionally(leader.error);
+            } else {
+                result.complete(nextToken);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<String> follow(final Call call,
+        final AmazonEC2ResponseParser.ItemHandler handler, final boolean counting
+    ) {
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        call.done.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                // The leader's error as it is, so its type and code still reach the caller
+                result.completeExceptionally(AmazonEC2Futures.unwrap(failure));
+                return;
+            }
+            try {
+                if (counting) {
+                    ((AmazonEC2ResponseParser.ItemCounter)handler).add(call.count);
+                } else {
+                    for (JSONObject item : call.items) {
+                        if (!handler.handle(item)) break;
+                    }
+                }
+                result.complete(call.nextToken);
+            } catch (BridgeError | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Stops the call accepting followers and removes it, returning whether any follower joined.
+     */
+    private boolean close(String key, Call call) {
+        boolean followed = call.close();
+        calls.remove(key, call);
+        return followed;
+    }
+
+    /**
+     * Starts the request, passing each item of the response to the handler.
+     */
+    public interface Fetch {
+        CompletableFuture<String> fetch(AmazonEC2ResponseParser.ItemHandler handler);
+    }
+
+    /**
+     * A request in flight.  Its results are written by the leader before done is completed.
+     */
+    private static class Call {
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        private final List<JSONObject> items = new ArrayList<JSONObject>();
+        private boolean open = true;
+        private int followers = 0;
+        private long count;
+        private String nextToken;
+
+        /**
+         * Adds a follower, unless the response is already being read.
+         */
+        private synchronized boolean join() {
+            if (open) {
+                followers++;
+            }
+            return open;
+        }
+
+        /**
+         * Stops accepting followers, returning whether any joined.
+         */
+        private synchronized boolean close() {
+            open = false;
+            return followers > 0;
+        }
+    }
+
+    /**
+     * Passes each item to the leader's handler as it is parsed, and also keeps it for the
+     * followers if there are any.  The parser is only stopped early once neither needs more items.
+     * An error thrown by the leader's handler is kept for the leader rather than failing the
+     * request, so the followers still receive their items.
+     */
+    private class LeaderHandler implements AmazonEC2ResponseParser.ProjectedItemHandler {
+        private final String key;
+        private final Call call;
+        private final AmazonEC2ResponseParser.ItemHandler handler;
+        private final Set<String> elements;
+        private boolean started = false;
+        private boolean buffering = false;
+        private boolean handling = true;
+        private Exception error;
+
+        private LeaderHandler(String key, Call call, AmazonEC2ResponseParser.ItemHandler handler,
+            Set<String> elements
+        ) {
+            this.key = key;
+            this.call = call;
+            this.handler = handler;
+            this.elements = elements;
+        }
+
+        @Override
+        public boolean handle(JSONObject item) {
+            if (!started) {
+                started = true;
+                buffering = close(key, call);
+            }
+            if (buffering) {
+                call.items.add(item);
+            }
+            if (handling) {
+                try {
+                    handling = handler.handle(item);
+                } catch (BridgeError | RuntimeException e) {
+                    error = e;
+                    handling = false;
+                }
+            }
+            return handling || buffering;
+        }
+
+        @Override
+        public Set<String> getElements() {
+            return elements;
+        }
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.json.JSONObject;
+import org.json.XML;
+
+/**
+ * Streaming pull parser for EC2 Query API responses.
+ *
+ * Rather than buffering the response and converting the whole document, the parser reads the
+ * entity stream and hands each item found at the configured element path to a handler as soon as
+ * it has been read, so at most one item is held in memory at a time.  Items are converted into the
+ * same JSONObject structure XML.toJSONObject produces: text-only elements become values, repeated
+ * elements become arrays and empty elements become empty strings.
+ */
+public class AmazonEC2ResponseParser {
+
+    /** Path from the response root to each instance of a DescribeInstances response. */
+    public static final AmazonEC2ResponseParser DESCRIBE_INSTANCES =
+        new AmazonEC2ResponseParser("reservationSet", "item", "instancesSet", "item");
+    /** Path from the response root to each instance of a DescribeInstanceStatus response. */
+    public static final AmazonEC2ResponseParser DESCRIBE_INSTANCE_STATUS =
+        new AmazonEC2ResponseParser("instanceStatusSet", "item");
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /**
+     * Receives items as they are parsed.
+     */
+    public interface ItemHandler {
+        /**
+         * @return false to stop parsing; the remaining items are skipped
+         */
+        boolean handle(JSONObject item) throws BridgeError;
+    }
+
+    /**
+     * A handler that only reads some of the child elements of each item.  The parser skips the
+     * others rather than converting them, so they are absent from the items it is given.
+     */
+    public interface ProjectedItemHandler extends ItemHandler {
+        /**
+         * @return the names of the child elements of each item to read, or null to read them all
+         */
+        Set<String> getElements();
+    }
+
+    /**
+     * Counts items without reading them.  The parser recognizes this handler and skips over each
+     * item instead of converting it, so counting allocates nothing per item.
+     */
+    public static class ItemCounter implements ItemHandler {
+        private long count = 0;
+
+        @Override
+        public boolean handle(JSONObject item) {
+            count++;
+            return true;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /** Adds items counted elsewhere, such as by a shared request. */
+        void add(long items) {
+            count += items;
+        }
+    }
+
+    private final List<String> itemPath;
+
+    public AmazonEC2ResponseParser(String... itemPath) {
+        this.itemPath = Arrays.asList(itemPath);
+    }
+
+    /**
+     * Parses the response, passing each item to the handler, and returns the nextToken of the
+     * response (or null if there is none).
+     */
+    public String parse(InputStream stream, ItemHandler handler) throws BridgeError {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(stream, "UTF-8");
+            reader.nextTag();
+            String root = reader.getLocalName();
+            if (!root.endsWith("Response") || root.equals("Response")) {
+                throw new BridgeError("Amazon EC2 returned an unexpected '"+root+"' document.");
+            }
+
+            String nextToken = null;
+            // Number of leading elements of the item path the reader is currently inside
+            int matched = 0;
+            // Depth below the deepest matched element of any element not on the item path
+            int unmatched = 0;
+            boolean handling = true;
+            Set<String> elements = (handler instanceof ProjectedItemHandler)
+                ? ((ProjectedItemHandler)handler).getElements()
+                : null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (unmatched == 0 && matched < itemPath.size() && itemPath.get(matched).equals(name)) {
+                        matched++;
+                        if (matched == itemPath.size()) {
+                            if (handler instanceof ItemCounter) {
+                                skipElement(reader);
+                                ((ItemCounter)handler).count++;
+                            } else if (handling) {
+                                Object item = readElement(reader, elements);
+                                if (item instanceof JSONObject) {
+                                    handling = handler.handle((JSONObject)item);
+                                }
+                            } else {
+                                skipElement(reader);
+                            }
+                            matched--;
+                        }
+                    } else if (unmatched == 0 && matched == 0 && name.equals("nextToken")) {
+                        String text = reader.getElementText().trim();
+                        nextToken = text.isEmpty() ? null : text;
+                    } else {
+                        unmatched++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (unmatched > 0) {
+                        unmatched--;
+                    } else if (matched > 0) {
+                        matched--;
+                    }
+                }
+            }
+            return nextToken;
+        } catch (XMLStreamException e) {
+            throw new BridgeError("Unable to parse the response from Amazon EC2.", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    AmazonEC2Adapter.logger.debug("Unable to close the Amazon EC2 response reader.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the Errors document of a failed request, returning it as an error carrying the first
+     * error's code and message.  A body that is not an Errors document (such as a load balancer
+     * page) yields an error with the reason phrase as its message.
+     */
+    public static AmazonEC2Error parseError(InputStream stream, int statusCode, String reasonPhrase) {
+        String code = null;
+        String message = null;
+        String requestId = null;
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(stream, "UTF-8");
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if (code == null && name.equals("Code")) {
+                    code = reader.getElementText().trim();
+                } else if (message == null && name.equals("Message")) {
+                    message = reader.getElementText().trim();
+                } else if (requestId == null && (name.equals("RequestID") || name.equals("RequestId"))) {
+                    requestId = reader.getElementText().trim();
+                }
+            }
+        } catch (XMLStreamException e) {
+            AmazonEC2Adapter.logger.debug("Unable to parse the Amazon EC2 error response.", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    AmazonEC2Adapter.logger.debug("Unable to close the Amazon EC2 response reader.", e);
+                }
+            }
+        }
+        return new AmazonEC2Error(statusCode, code, message == null ? reasonPhrase : message, requestId);
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Advances the reader from a START_ELEMENT past its matching END_ELEMENT.
+     */
+    static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Reads the element the reader is positioned at (a START_ELEMENT) through its END_ELEMENT.
+     */
+    static Object readElement(XMLStreamReader reader) throws XMLStreamException {
+        return readElement(reader, null);
+    }
+
+    /**
+     * Reads the element the reader is positioned at, skipping any child element whose name is not
+     * in the set (unless the set is null).  The children that are read are read in full.
+     */
+    static Object readElement(XMLStreamReader reader, Set<String> children) throws XMLStreamException {
+        // An item is still an object when none of its children were read
+        JSONObject object = (children == null) ? null : new JSONObject();
+        StringBuilder text = null;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (children != null && !children.contains(name)) {
+                    skipElement(reader);
+                    continue;
+                }
+                Object child = readElement(reader);
+                if (object == null) object = new JSONObject();
+                object.accumulate(name, child);
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                if (!reader.isWhiteSpace()) {
+                    if (text == null) text = new StringBuilder();
+                    text.append(reader.getText());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        if (object == null) {
+            return text == null ? "" : XML.stringToValue(text.toString().trim());
+        }
+        if (text != null) {
+            object.accumulate("content", XML.stringToValue(text.toString().trim()));
+        }
+        return object;
+    }
+
+}
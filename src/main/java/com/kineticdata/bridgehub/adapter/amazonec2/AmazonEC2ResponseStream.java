@@ -0,0 +1,158 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+
+/**
+ * A response body passed from the HTTP client's I/O thread to the thread parsing it.
+ *
+ * The I/O thread copies the body into a fixed buffer as it arrives, and suspends reading from the
+ * connection while the buffer is full; the parser reads the buffer as an InputStream and resumes
+ * the connection once it has made room.  So however large the response, no more than the buffer
+ * is held between the network and the parser.  Closing the stream before the end of the body
+ * discards the rest of it as it arrives, which leaves the connection fit to be reused.
+ */
+public class AmazonEC2ResponseStream extends InputStream {
+
+    /** Holds the received bytes not yet read, between position 0 and its position. */
+    private final ByteBuffer buffer;
+    private IOControl suspended;
+    private boolean ended = false;
+    private boolean closed = false;
+    private IOException failure;
+
+    /**
+     * @param bufferSize the most bytes of the body held at once
+     */
+    public AmazonEC2ResponseStream(int bufferSize) {
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Copies what the decoder has received into the buffer, suspending input from the connection
+     * if the buffer fills up.  Called on the I/O thread.
+     */
+    public synchronized void consume(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        if (closed) {
+            // Nobody reads the rest of the body, so it is only drained from the connection
+            buffer.clear();
+            while (decoder.read(buffer) > 0) {
+                buffer.clear();
+            }
+        } else {
+            while (buffer.hasRemaining() && decoder.read(buffer) > 0) {
+                // Read as much as fits
+            }
+            if (!buffer.hasRemaining() && !decoder.isCompleted()) {
+                ioControl.suspendInput();
+                suspended = ioControl;
+            }
+        }
+        if (decoder.isCompleted()) {
+            ended = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the body, once the whole response has been received.
+     */
+    public synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * Fails any read still waiting for the body, unless the whole body has been received.
+     *
+     * @param cause why the response was not completed, or null if it was cancelled
+     */
+    public synchronized void fail(Exception cause) {
+        if (ended || failure != null) {
+            return;
+        }
+        failure = (cause instanceof IOException)
+            ? (IOException)cause
+            : new IOException("The response from Amazon EC2 was not completed.", cause);
+        notifyAll();
+    }
+
+    /**
+     * Returns the error the body was failed with, or null if it was not.
+     */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return (n < 0) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (buffer.position() == 0 && !ended && failure == null && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading the Amazon EC2 response.");
+            }
+        }
+        if (closed) {
+            throw new IOException("The response stream is closed.");
+        }
+        if (buffer.position() == 0) {
+            if (failure != null) {
+                throw failure;
+            }
+            return -1;
+        }
+        buffer.flip();
+        int n = Math.min(length, buffer.remaining());
+        buffer.get(b, offset, n);
+        buffer.compact();
+        resume();
+        return n;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffer.position();
+    }
+
+    /**
+     * Discards the body not yet read, and whatever of it is still to arrive.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        buffer.clear();
+        resume();
+        notifyAll();
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Resumes input from the connection if it was suspended while the buffer was full.
+     */
+    private void resume() {
+        if (suspended != null) {
+            suspended.requestInput();
+            suspended = null;
+        }
+    }
+
+}
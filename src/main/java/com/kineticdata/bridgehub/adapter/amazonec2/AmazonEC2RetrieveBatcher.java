@@ -0,0 +1,251 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+
+/**
+ * Combines lookups of single instances by id, made within a short window of each other, into one
+ * DescribeInstances request per region that names every instance with InstanceId.N.
+ *
+ * The first lookup opens a batch that is sent once the window has passed, or as soon as it holds
+ * MAX_BATCH_SIZE ids.  Lookups of an id already in the open batch share its entry.  The response is
+ * split by instance id, and each lookup completes with its instance, or null if the region does not
+ * have it.  EC2 rejects a whole InstanceId.N request if any of its ids does not exist, listing them
+ * in the error message; those lookups complete with null and the rest of the batch is sent again.
+ * Only well formed instance ids are batched, so EC2 never rejects a batch for a malformed one.
+ */
+public class AmazonEC2RetrieveBatcher {
+
+    /** The most ids named by one request, which keeps the signed GET URL within a few kilobytes. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private static final String NOT_FOUND = "InvalidInstanceID.NotFound";
+    private static final Pattern INSTANCE_ID = Pattern.compile("i-(?:[0-9a-f]{8}|[0-9a-f]{17})");
+    private static final Pattern NOT_ID = Pattern.compile("[^A-Za-z0-9-]+");
+
+    private final AmazonEC2Client client;
+    private final long windowMillis;
+    private final AmazonEC2Metrics metrics;
+    /** Guards batch, the batch lookups are currently added to. */
+    private final Object lock = new Object();
+    private Batch batch;
+    private boolean closed = false;
+
+    /**
+     * @param windowMillis how long a batch collects lookups before it is sent
+     */
+    public AmazonEC2RetrieveBatcher(AmazonEC2Client client, long windowMillis, AmazonEC2Metrics metrics) {
+        this.client = client;
+        this.windowMillis = windowMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether the value is an instance id that can be batched.
+     */
+    public static boolean isInstanceId(String value) {
+        return value != null && INSTANCE_ID.matcher(value).matches();
+    }
+
+    /**
+     * Adds a lookup of the instance to the open batch.  The future completes with the instance, or
+     * null if it does not exist in the client's region.
+     *
+     * @param elements the instance elements the caller reads, or null for all of them
+     */
+    public CompletableFuture<JSONObject> retrieve(String instanceId, Set<String> elements) {
+        CompletableFuture<JSONObject> result = new CompletableFuture<JSONObject>();
+        Batch full = null;
+        synchronized (lock) {
+            if (closed) {
+                return AmazonEC2Futures.failed(closedError());
+            }
+            if (batch == null) {
+                final Batch opened = new Batch();
+                try {
+                    client.schedule(() -> send(opened), windowMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    return AmazonEC2Futures.failed(closedError());
+                }
+                batch = opened;
+            }
+            batch.add(instanceId, elements, result);
+            if (batch.lookups.size() >= MAX_BATCH_SIZE) {
+                full = batch;
+                batch = null;
+            }
+        }
+        metrics.increment(AmazonEC2Metrics.Counter.BATCHED_RETRIEVES);
+        if (full != null) {
+            send(full);
+        }
+        return result;
+    }
+
+    /**
+     * Fails the lookups of the open batch.  Batches already sent complete as their requests do.
+     */
+    public void close() {
+        Batch open;
+        synchronized (lock) {
+            closed = true;
+            open = batch;
+            batch = null;
+        }
+        if (open != null && open.claim()) {
+            open.fail(open.lookups.keySet(), closedError());
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Sends the batch, unless it has already been sent because it filled up before its window
+     * passed.
+     */
+    private void send(Batch sent) {
+        synchronized (lock) {
+            if (batch == sent) {
+                batch = null;
+            }
+        }
+        if (sent.claim()) {
+            request(sent, new ArrayList<String>(sent.lookups.keySet()));
+        }
+    }
+
+    /**
+     * Requests the instances, completing their lookups, and requests again without any ids EC2
+     * reports do not exist.
+     */
+    private void request(final Batch sent, final List<String> instanceIds) {
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        for (int i = 0; i < instanceIds.size(); i++) {
+            parameters.put("InstanceId."+(i + 1), instanceIds.get(i));
+        }
+        final Map<String,JSONObject> instances = new HashMap<String,JSONObject>();
+        AmazonEC2ResponseParser.ProjectedItemHandler handler = new AmazonEC2ResponseParser.ProjectedItemHandler() {
+            @Override
+            public boolean handle(JSONObject instance) {
+                instances.put(instance.optString(AmazonEC2QueryTranslator.INSTANCE_ID), instance);
+                return true;
+            }
+
+            @Override
+            public Set<String> getElements() {
+                return sent.elements;
+            }
+        };
+
+        client.describeInstancesAsync(parameters, AmazonEC2ResponseParser.DESCRIBE_INSTANCES, handler)
+            .whenComplete((nextToken, failure) -> {
+                if (failure == null) {
+                    for (String instanceId : instanceIds) {
+                        sent.complete(instanceId, instances.get(instanceId));
+                    }
+                    return;
+                }
+                Throwable error = AmazonEC2Futures.unwrap(failure);
+                Set<String> missing = (error instanceof AmazonEC2Error && NOT_FOUND.equals(((AmazonEC2Error)error).getCode()))
+                    ? named(((AmazonEC2Error)error).getErrorMessage(), instanceIds)
+                    : new HashSet<String>();
+                if (missing.isEmpty()) {
+                    sent.fail(instanceIds, error);
+                    return;
+                }
+                List<String> remaining = new ArrayList<String>();
+                for (String instanceId : instanceIds) {
+                    if (missing.contains(instanceId)) {
+                        sent.complete(instanceId, null);
+                    } else {
+                        remaining.add(instanceId);
+                    }
+                }
+                if (!remaining.isEmpty()) {
+                    request(sent, remaining);
+                }
+            });
+    }
+
+    /**
+     * Returns the ids named in an error message, such as "The instance IDs 'i-1, i-2' do not exist".
+     */
+    private static Set<String> named(String message, List<String> instanceIds) {
+        Set<String> words = new HashSet<String>(Arrays.asList(NOT_ID.split(message == null ? "" : message)));
+        Set<String> named = new HashSet<String>();
+        for (String instanceId : instanceIds) {
+            if (words.contains(instanceId)) {
+                named.add(instanceId);
+            }
+        }
+        return named;
+    }
+
+    private static BridgeError closedError() {
+        return new BridgeError("The Amazon EC2 retrieve batcher has been closed.");
+    }
+
+    /**
+     * The lookups collected by one batch, by instance id, and the union of the elements they read.
+     */
+    private static class Batch {
+        private final Map<String,List<CompletableFuture<JSONObject>>> lookups =
+            new LinkedHashMap<String,List<CompletableFuture<JSONObject>>>();
+        private Set<String> elements = new HashSet<String>();
+        private boolean sent = false;
+
+        /** Only called while the batch is open, under the batcher's lock. */
+        private void add(String instanceId, Set<String> read, CompletableFuture<JSONObject> lookup) {
+            List<CompletableFuture<JSONObject>> waiting = lookups.get(instanceId);
+            if (waiting == null) {
+                waiting = new ArrayList<CompletableFuture<JSONObject>>();
+                lookups.put(instanceId, waiting);
+            }
+            waiting.add(lookup);
+            if (read == null) {
+                elements = null;
+            } else if (elements != null) {
+                elements.addAll(read);
+                elements.add(AmazonEC2QueryTranslator.INSTANCE_ID);
+            }
+        }
+
+        /** Returns true the first time it is called, so a batch is sent only once. */
+        private synchronized boolean claim() {
+            boolean claimed = !sent;
+            sent = true;
+            return claimed;
+        }
+
+        private void complete(String instanceId, JSONObject instance) {
+            for (CompletableFuture<JSONObject> lookup : lookups.get(instanceId)) {
+                lookup.complete(instance);
+            }
+        }
+
+        private void fail(Iterable<String> instanceIds, Throwable error) {
+            for (String instanceId : instanceIds) {
+                for (CompletableFuture<JSONObject> lookup : lookups.get(instanceId)) {
+                    lookup.completeExceptionally(error);
+                }
+            }
+        }
+    }
+
+}
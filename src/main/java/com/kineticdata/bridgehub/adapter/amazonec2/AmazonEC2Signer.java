@@ -0,0 +1,231 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Computes AWS Signature Version 4 authorization headers for EC2 Query API GET requests.
+ *
+ * The derived signing key only depends on the date, region and service, so it is computed once
+ * per UTC day for each region and reused until the date stamp rolls over.  Mac, MessageDigest and
+ * date format instances are not thread safe; they are confined to the calling thread and reused
+ * across requests instead of being looked up through the JCA provider on every call.
+ */
+public class AmazonEC2Signer {
+
+    public static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    public static final String SIGNED_HEADERS = "host;x-amz-date";
+    public static final String DEFAULT_SERVICE = "ec2";
+
+    /** Hex encoded SHA-256 hash of the empty request body sent with every GET request. */
+    public static final String EMPTY_PAYLOAD_HASH =
+        "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String TERMINATOR = "aws4_request";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+    private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(HMAC_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("The "+HMAC_ALGORITHM+" algorithm is not available.", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("The SHA-256 algorithm is not available.", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<DateFormat> AMAZON_DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private final String accessKey;
+    private final byte[] secret;
+    private final String service;
+
+    /** Most recently derived signing key for each region, replaced when the date stamp changes. */
+    private final ConcurrentMap<String,SigningKey> signingKeys = new ConcurrentHashMap<String,SigningKey>();
+
+    public AmazonEC2Signer(String accessKey, String secretKey) {
+        this(accessKey, secretKey, DEFAULT_SERVICE);
+    }
+
+    public AmazonEC2Signer(String accessKey, String secretKey, String service) {
+        this.accessKey = accessKey;
+        this.secret = utf8("AWS4" + secretKey);
+        this.service = service;
+    }
+
+    /**
+     * Signs a GET request for the root path with an empty body and the host and x-amz-date headers.
+     * The canonical query string must already be sorted and URI encoded.
+     */
+    public Signature sign(String host, String region, String canonicalQueryString, Date date) {
+        String amazonDate = AMAZON_DATE_FORMAT.get().format(date);
+        String dateStamp = amazonDate.substring(0, 8);
+        SigningKey signingKey = getSigningKey(dateStamp, region);
+
+        StringBuilder builder = new StringBuilder(256 + canonicalQueryString.length());
+        builder.append("GET\n/\n").append(canonicalQueryString).append('\n')
+            .append("host:").append(host).append('\n')
+            .append("x-amz-date:").append(amazonDate).append('\n')
+            .append('\n')
+            .append(SIGNED_HEADERS).append('\n')
+            .append(EMPTY_PAYLOAD_HASH);
+        byte[] canonicalRequestHash = SHA256.get().digest(utf8(builder.toString()));
+
+        builder.setLength(0);
+        builder.append(ALGORITHM).append('\n')
+            .append(amazonDate).append('\n')
+            .append(signingKey.credentialScope).append('\n');
+        appendHex(builder, canonicalRequestHash);
+        byte[] signature = hmac(signingKey.key, utf8(builder.toString()));
+
+        builder.setLength(0);
+        builder.append(ALGORITHM).append(" Credential=").append(accessKey).append('/')
+            .append(signingKey.credentialScope)
+            .append(", SignedHeaders=").append(SIGNED_HEADERS)
+            .append(", Signature=");
+        appendHex(builder, signature);
+
+        return new Signature(amazonDate, builder.toString());
+    }
+
+    /**
+     * Builds the canonical query string for the parameters: names and values URI encoded per
+     * RFC 3986 and joined in name order.  The same string is used as the request query string.
+     */
+    public static String canonicalQueryString(SortedMap<String,String> parameters) {
+        StringBuilder builder = new StringBuilder(32 * parameters.size());
+        for (Map.Entry<String,String> parameter : parameters.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            uriEncode(builder, parameter.getKey());
+            builder.append('=');
+            uriEncode(builder, parameter.getValue());
+        }
+        return builder.toString();
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private SigningKey getSigningKey(String dateStamp, String region) {
+        SigningKey signingKey = signingKeys.get(region);
+        if (signingKey == null || !signingKey.dateStamp.equals(dateStamp)) {
+            // Racing threads derive identical keys, so the last writer winning is harmless
+            byte[] kDate = hmac(secret, utf8(dateStamp));
+            byte[] kRegion = hmac(kDate, utf8(region));
+            byte[] kService = hmac(kRegion, utf8(service));
+            byte[] kSigning = hmac(kService, utf8(TERMINATOR));
+            String credentialScope = dateStamp+"/"+region+"/"+service+"/"+TERMINATOR;
+            signingKey = new SigningKey(dateStamp, credentialScope, kSigning);
+            signingKeys.put(region, signingKey);
+        }
+        return signingKey;
+    }
+
+    static byte[] hmac(byte[] key, byte[] data) {
+        Mac mac = MAC.get();
+        try {
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize the "+HMAC_ALGORITHM+" key.", e);
+        }
+        return mac.doFinal(data);
+    }
+
+    static void appendHex(StringBuilder builder, byte[] bytes) {
+        for (byte b : bytes) {
+            builder.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+        }
+    }
+
+    static void uriEncode(StringBuilder builder, String value) {
+        for (byte b : utf8(value)) {
+            if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9')
+                || b == '-' || b == '_' || b == '.' || b == '~'
+            ) {
+                builder.append((char)b);
+            } else {
+                builder.append('%').append(HEX_UPPER[(b >> 4) & 0x0f]).append(HEX_UPPER[b & 0x0f]);
+            }
+        }
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("The UTF-8 charset is not available.", e);
+        }
+    }
+
+    /**
+     * Derived signing key along with the date stamp and credential scope it is valid for.
+     */
+    private static class SigningKey {
+        private final String dateStamp;
+        private final String credentialScope;
+        private final byte[] key;
+
+        private SigningKey(String dateStamp, String credentialScope, byte[] key) {
+            this.dateStamp = dateStamp;
+            this.credentialScope = credentialScope;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Header values that need to be sent with a signed request.
+     */
+    public static class Signature {
+        private final String amazonDate;
+        private final String authorization;
+
+        public Signature(String amazonDate, String authorization) {
+            this.amazonDate = amazonDate;
+            this.authorization = authorization;
+        }
+
+        public String getAmazonDate() {
+            return amazonDate;
+        }
+
+        public String getAuthorization() {
+            return authorization;
+        }
+    }
+
+}
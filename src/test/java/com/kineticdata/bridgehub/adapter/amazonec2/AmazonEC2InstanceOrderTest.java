@@ -0,0 +1,133 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2InstanceOrderTest {
+
+    /** Values of every type, in ascending order. */
+    private static final List<String> ASCENDING = Arrays.asList("-1", "1.5", "9", "10",
+        "2016-08-23T12:37:00.000Z", "", "1a", "a9", "abc");
+
+    @Test
+    public void test_select_numbersNumerically() throws Exception {
+        assertEquals(Arrays.asList("2", "9", "10", "100"),
+            select("ASC", 10, "10", "9", "100", "2"));
+        assertEquals(Arrays.asList("100", "10", "9", "2"),
+            select("DESC", 10, "10", "9", "100", "2"));
+    }
+
+    @Test
+    public void test_select_timestampsChronologically() throws Exception {
+        assertEquals(Arrays.asList("2016-08-23T10:00:00.000+01:00", "2016-08-23T09:30:00Z",
+            "2016-08-23T12:37:00.000Z"),
+            select("ASC", 10, "2016-08-23T12:37:00.000Z", "2016-08-23T09:30:00Z",
+                "2016-08-23T10:00:00.000+01:00"));
+    }
+
+    @Test
+    public void test_select_mixedTypesByType() throws Exception {
+        // Numbers before timestamps before text, each ordered by its own type
+        assertEquals(Arrays.asList("9", "10", "2016-08-23T12:37:00.000Z", "1a", "abc"),
+            select("ASC", 10, "1a", "10", "abc", "2016-08-23T12:37:00.000Z", "9"));
+    }
+
+    @Test
+    public void test_select_missingValuesLastAscendingFirstDescending() throws Exception {
+        assertEquals(Arrays.asList("a", "b", null), select("ASC", 10, null, "b", "a"));
+        assertEquals(Arrays.asList(null, "b", "a"), select("DESC", 10, null, "b", "a"));
+    }
+
+    @Test
+    public void test_select_keepsTheFirstInstances() throws Exception {
+        assertEquals(Arrays.asList("1", "2", "3"), select("ASC", 3, "5", "3", "4", "1", "2"));
+    }
+
+    @Test
+    public void test_select_tiesKeepTheirOrder() throws Exception {
+        AmazonEC2InstanceOrder order = order("ASC");
+        AmazonEC2InstanceOrder.Selection selection = order.select(10);
+        for (int i = 0; i < 5; i++) {
+            selection.offer(new JSONObject().put("value", "same").put("instanceId", "i-"+i));
+        }
+        List<String> ids = new ArrayList<String>();
+        for (JSONObject instance : selection.getInstances()) {
+            ids.add(instance.getString("instanceId"));
+        }
+        assertEquals(Arrays.asList("i-0", "i-1", "i-2", "i-3", "i-4"), ids);
+    }
+
+    @Test
+    public void test_select_mixedValuesAreConsistent() throws Exception {
+        // Values mixing numbers and text used to compare inconsistently ("9" < "10" < "1a" < "9"),
+        // so sorting them could fail with "Comparison method violates its general contract"
+        Random random = new Random(42);
+        for (int run = 0; run < 50; run++) {
+            String[] offered = new String[200];
+            for (int i = 0; i < offered.length; i++) {
+                offered[i] = ASCENDING.get(random.nextInt(ASCENDING.size()));
+            }
+            List<String> result = select("ASC", offered.length, offered);
+            assertEquals(offered.length, result.size());
+            for (int i = 1; i < result.size(); i++) {
+                assertTrue(result.get(i-1)+" before "+result.get(i),
+                    ASCENDING.indexOf(result.get(i-1)) <= ASCENDING.indexOf(result.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void test_addAll_mergesSelections() throws Exception {
+        AmazonEC2InstanceOrder order = order("ASC");
+        AmazonEC2InstanceOrder.Selection first = order.select(3);
+        AmazonEC2InstanceOrder.Selection second = order.select(3);
+        for (String value : new String[] {"4", "8", "1", "6"}) {
+            first.offer(new JSONObject().put("value", value));
+        }
+        for (String value : new String[] {"5", "2", "7"}) {
+            second.offer(new JSONObject().put("value", value));
+        }
+        AmazonEC2InstanceOrder.Selection merged = order.select(3);
+        merged.addAll(first);
+        merged.addAll(second);
+
+        assertEquals(7, merged.getOffered());
+        assertEquals(Arrays.asList("1", "2", "4"), values(merged.getInstances()));
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static AmazonEC2InstanceOrder order(String direction) {
+        Map<String,String> fields = new LinkedHashMap<String,String>();
+        fields.put("value", direction);
+        return new AmazonEC2InstanceOrder(fields);
+    }
+
+    private static List<String> select(String direction, int size, String... values) {
+        AmazonEC2InstanceOrder.Selection selection = order(direction).select(size);
+        for (String value : values) {
+            JSONObject instance = new JSONObject();
+            if (value != null) instance.put("value", value);
+            selection.offer(instance);
+        }
+        return values(selection.getInstances());
+    }
+
+    private static List<String> values(List<JSONObject> instances) {
+        List<String> values = new ArrayList<String>();
+        for (JSONObject instance : instances) {
+            values.add(instance.has("value") ? instance.getString("value") : null);
+        }
+        return values;
+    }
+
+}
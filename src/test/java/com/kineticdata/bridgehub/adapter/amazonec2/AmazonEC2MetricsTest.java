@@ -0,0 +1,86 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2MetricsTest {
+
+    @Test
+    public void test_timer_percentilesWithinBucketPrecision() throws Exception {
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+        for (long micros = 1; micros <= 100000; micros++) {
+            metrics.recordNanos(AmazonEC2Metrics.Timer.HTTP, TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        AmazonEC2Metrics.TimerSnapshot snapshot = metrics.getTimers().get("phase.http");
+
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(50000, snapshot.getMean());
+        assertEquals(100000, snapshot.getMax());
+        // Each reported percentile is the upper bound of its bucket, at most 12.5% above the value
+        assertWithin(50000, snapshot.getP50());
+        assertWithin(90000, snapshot.getP90());
+        assertWithin(99000, snapshot.getP99());
+    }
+
+    @Test
+    public void test_timer_smallValuesAreExact() throws Exception {
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+        for (long micros = 0; micros < 8; micros++) {
+            metrics.recordNanos(AmazonEC2Metrics.Timer.SIGN, TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        AmazonEC2Metrics.TimerSnapshot snapshot = metrics.getTimers().get("phase.sign");
+
+        assertEquals(3, snapshot.getP50());
+        assertEquals(7, snapshot.getP99());
+        assertEquals(7, snapshot.getMax());
+    }
+
+    @Test
+    public void test_timer_percentilesNeverExceedTheMaximum() throws Exception {
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+        metrics.recordNanos(AmazonEC2Metrics.Timer.PARSE, TimeUnit.MICROSECONDS.toNanos(1000));
+        AmazonEC2Metrics.TimerSnapshot snapshot = metrics.getTimers().get("phase.parse");
+
+        assertEquals(1000, snapshot.getP50());
+        assertEquals(1000, snapshot.getP99());
+    }
+
+    @Test
+    public void test_timer_largeValues() throws Exception {
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+        metrics.recordNanos(AmazonEC2Metrics.Timer.SEARCH, Long.MAX_VALUE);
+        AmazonEC2Metrics.TimerSnapshot snapshot = metrics.getTimers().get("operation.search");
+
+        assertEquals(TimeUnit.NANOSECONDS.toMicros(Long.MAX_VALUE), snapshot.getMax());
+        assertEquals(snapshot.getMax(), snapshot.getP99());
+    }
+
+    @Test
+    public void test_counters_andReset() throws Exception {
+        AmazonEC2Metrics metrics = new AmazonEC2Metrics();
+        metrics.increment(AmazonEC2Metrics.Counter.REQUESTS);
+        metrics.increment(AmazonEC2Metrics.Counter.REQUESTS);
+        metrics.add(AmazonEC2Metrics.Counter.BYTES_RECEIVED, 4096);
+        metrics.recordNanos(AmazonEC2Metrics.Timer.MAP, 5000);
+
+        assertEquals(Long.valueOf(2), metrics.getCounters().get("requests"));
+        assertEquals(Long.valueOf(4096), metrics.getCounters().get("bytesReceived"));
+        assertEquals(Long.valueOf(0), metrics.getCounters().get("retries"));
+
+        metrics.reset();
+        assertEquals(Long.valueOf(0), metrics.getCounters().get("requests"));
+        assertEquals(0, metrics.getTimers().get("phase.map").getCount());
+        assertEquals(0, metrics.getTimers().get("phase.map").getMax());
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual+" is below "+expected, actual >= expected);
+        assertTrue(actual+" is more than 12.5% above "+expected, actual <= expected * 1.125);
+    }
+
+}
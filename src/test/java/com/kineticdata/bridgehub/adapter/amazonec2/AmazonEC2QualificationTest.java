@@ -0,0 +1,129 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2QualificationTest {
+
+    private static final JSONObject WEB = instance("i-1", "running", "t2.micro", "web-1");
+    private static final JSONObject DB = instance("i-2", "stopped", "m4.large", "db-1");
+
+    @Test
+    public void test_compile_comparisons() throws Exception {
+        assertMatches("\"instanceId\"=\"i-1\"", true, false);
+        assertMatches("\"instanceId\"!=\"i-1\"", false, true);
+        assertMatches("\"instanceType\"^=\"t2.\"", true, false);
+        assertMatches("\"instanceType\"$=\".large\"", false, true);
+        assertMatches("\"tag:Name\"*=\"db\"", false, true);
+        assertMatches("\"instanceState\"=\"running\"", true, false);
+    }
+
+    @Test
+    public void test_compile_booleanOperators() throws Exception {
+        assertMatches("\"instanceId\"=\"i-1\" OR \"instanceId\"=\"i-2\"", true, true);
+        assertMatches("\"instanceId\"=\"i-1\" AND \"instanceState\"=\"stopped\"", false, false);
+        assertMatches("NOT \"instanceId\"=\"i-1\"", false, true);
+        assertMatches("!(\"instanceId\"=\"i-1\" || \"instanceId\"=\"i-3\") && \"instanceType\"^=\"m4\"",
+            false, true);
+        // AND binds tighter than OR
+        assertMatches("\"instanceId\"=\"i-2\" OR \"instanceId\"=\"i-1\" AND \"instanceState\"=\"stopped\"",
+            false, true);
+    }
+
+    @Test
+    public void test_compile_adjacentComparisonsAreAnded() throws Exception {
+        assertMatches("\"instanceId\"=\"i-1\" \"instanceState\"=\"running\"", true, false);
+        assertMatches("\"instanceId\"=\"i-1\", \"instanceState\"=\"stopped\"", false, false);
+    }
+
+    @Test
+    public void test_compile_matchAll() throws Exception {
+        assertMatches("", true, true);
+        assertMatches("*", true, true);
+        assertMatches("\"*\"", true, true);
+        assertSame(AmazonEC2Qualification.ALL,
+            AmazonEC2Qualification.compile("\"*\" OR \"instanceId\"=\"i-1\"").bind(null));
+    }
+
+    @Test
+    public void test_bind_parameters() throws Exception {
+        AmazonEC2Qualification qualification = AmazonEC2Qualification.compile(
+            "\"instanceId\"=\"<%=parameter[\"Id\"]%>\" AND \"tag:Name\"^=<%=parameter[\"Prefix\"]%>");
+        Map<String,String> parameters = new HashMap<String,String>();
+        parameters.put("Id", "i-2");
+        parameters.put("Prefix", "db");
+        AmazonEC2Qualification.Predicate predicate = qualification.bind(parameters);
+        assertFalse(predicate.matches(WEB));
+        assertTrue(predicate.matches(DB));
+
+        // A parameter value is only ever a value, never part of the qualification
+        parameters.put("Id", "i-1\" OR \"instanceId\"=\"i-2");
+        assertFalse(qualification.bind(parameters).matches(DB));
+    }
+
+    @Test
+    public void test_bind_missingParameter() throws Exception {
+        AmazonEC2Qualification qualification = AmazonEC2Qualification.compile(
+            "\"instanceId\"=\"<%=parameter[\"Id\"]%>\"");
+        try {
+            qualification.bind(Collections.<String,String>emptyMap());
+            fail("Expected a BridgeError.");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'Id'"));
+        }
+    }
+
+    @Test
+    public void test_compile_legacyQuotedPairs() throws Exception {
+        // Anything between quoted strings was ignored by the original adapter
+        assertMatches("\"instanceId\":\"i-1\"", true, false);
+        assertMatches("\"instanceId\" : \"i-2\" ; \"instanceState\" : \"stopped\"", false, true);
+        assertMatches("\"*\" ; \"instanceId\" : \"i-1\"", true, false);
+
+        AmazonEC2Qualification qualification = AmazonEC2Qualification.compile(
+            "\"instanceId\":\"<%=parameter[\"Id\"]%>\"");
+        assertTrue(qualification.bind(Collections.singletonMap("Id", "i-2")).matches(DB));
+    }
+
+    @Test
+    public void test_compile_invalid() throws Exception {
+        for (String query : new String[] {
+            "\"instanceId\"=", "\"instanceId\"=\"i-1", "\"instanceId\"", "\"instanceId\":"
+        }) {
+            try {
+                AmazonEC2Qualification.compile(query);
+                fail("Expected a BridgeError for: "+query);
+            } catch (BridgeError e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Unable to parse qualification"));
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static void assertMatches(String query, boolean web, boolean db) throws BridgeError {
+        AmazonEC2Qualification.Predicate predicate = AmazonEC2Qualification.compile(query)
+            .bind(Collections.<String,String>emptyMap());
+        assertEquals(query+" (web)", web, predicate.matches(WEB));
+        assertEquals(query+" (db)", db, predicate.matches(DB));
+    }
+
+    static JSONObject instance(String instanceId, String state, String instanceType, String name) {
+        return new JSONObject()
+            .put("instanceId", instanceId)
+            .put("instanceState", new JSONObject().put("code", 16).put("name", state))
+            .put("instanceType", instanceType)
+            .put("tagSet", new JSONObject().put("item", new JSONArray()
+                .put(new JSONObject().put("key", "Name").put("value", name))
+                .put(new JSONObject().put("key", "Env").put("value", "prod"))));
+    }
+
+}
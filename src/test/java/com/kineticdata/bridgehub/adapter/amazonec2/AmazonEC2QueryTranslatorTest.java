@@ -0,0 +1,107 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.json.JSONObject;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2QueryTranslatorTest {
+
+    private static final Map<String,String> NO_PARAMETERS = Collections.emptyMap();
+
+    private final AmazonEC2QueryTranslator translator = new AmazonEC2QueryTranslator();
+
+    @Test
+    public void test_translate_equalityIsPushedDown() throws Exception {
+        AmazonEC2QueryTranslator.Translation translation = translator.translate(
+            "\"instanceState\"=\"running\" AND \"tag:Env\"=\"prod\"", NO_PARAMETERS);
+
+        assertEquals(parameters(
+            "Filter.1.Name", "instance-state-name", "Filter.1.Value.1", "running",
+            "Filter.2.Name", "tag:Env", "Filter.2.Value.1", "prod"), translation.getParameters());
+        assertFalse(translation.hasLocalPredicate());
+        assertTrue(translation.isConditionsOnly());
+        assertEquals(2, translation.getConditions().size());
+    }
+
+    @Test
+    public void test_translate_disjunctionOnOneKeyIsOneFilter() throws Exception {
+        AmazonEC2QueryTranslator.Translation translation = translator.translate(
+            "\"instanceId\"=\"i-1\" OR \"instanceId\"=\"i-2\"", NO_PARAMETERS);
+
+        assertEquals(parameters("Filter.1.Name", "instance-id", "Filter.1.Value.1", "i-1",
+            "Filter.1.Value.2", "i-2"), translation.getParameters());
+        assertFalse(translation.hasLocalPredicate());
+        assertFalse(translation.isConditionsOnly());
+    }
+
+    @Test
+    public void test_translate_wildcardsAreEscaped() throws Exception {
+        AmazonEC2QueryTranslator.Translation translation = translator.translate(
+            "\"tag:Name\"^=\"web*\" AND \"instanceType\"$=\".large\" AND \"keyName\"*=\"a?b\"", NO_PARAMETERS);
+
+        assertEquals(parameters(
+            "Filter.1.Name", "tag:Name", "Filter.1.Value.1", "web\\**",
+            "Filter.2.Name", "instance-type", "Filter.2.Value.1", "*.large",
+            "Filter.3.Name", "key-name", "Filter.3.Value.1", "*a\\?b*"), translation.getParameters());
+        assertFalse(translation.hasLocalPredicate());
+    }
+
+    @Test
+    public void test_translate_restIsEvaluatedLocally() throws Exception {
+        AmazonEC2QueryTranslator.Translation translation = translator.translate(
+            "\"instanceState\"=\"running\" AND \"instanceType\"!=\"t2.micro\""
+                + " AND \"instanceState\"=\"stopped\" AND \"launchTime\"^=\"2016\"",
+            NO_PARAMETERS);
+
+        // Only the first conjunct on a key is pushed down, as EC2 ORs the values of one filter
+        assertEquals(parameters("Filter.1.Name", "instance-state-name", "Filter.1.Value.1", "running"),
+            translation.getParameters());
+        assertTrue(translation.hasLocalPredicate());
+        assertEquals(new HashSet<String>(Arrays.asList("instanceType", "instanceState", "launchTime")),
+            translation.getLocalElements());
+
+        JSONObject instance = AmazonEC2QualificationTest.instance("i-1", "running", "m4.large", "web-1")
+            .put("launchTime", "2016-08-23T12:37:00.000Z");
+        assertFalse(translation.matches(instance));
+        assertFalse(translation.matchesAll(instance));
+    }
+
+    @Test
+    public void test_translate_parametersAreBound() throws Exception {
+        String query = "\"instanceId\"=\"<%=parameter[\"Id\"]%>\"";
+        AmazonEC2QueryTranslator.Translation translation = translator.translate(query,
+            Collections.singletonMap("Id", "i-0abc"));
+
+        assertEquals(parameters("Filter.1.Name", "instance-id", "Filter.1.Value.1", "i-0abc"),
+            translation.getParameters());
+        assertSame(translator.compile(query), translator.compile(query));
+    }
+
+    @Test
+    public void test_translate_matchAll() throws Exception {
+        AmazonEC2QueryTranslator.Translation translation = translator.translate("\"*\"", NO_PARAMETERS);
+
+        assertTrue(translation.getParameters().isEmpty());
+        assertFalse(translation.hasLocalPredicate());
+        assertTrue(translation.matchesAll(new JSONObject()));
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static SortedMap<String,String> parameters(String... namesAndValues) {
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            parameters.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return parameters;
+    }
+
+}
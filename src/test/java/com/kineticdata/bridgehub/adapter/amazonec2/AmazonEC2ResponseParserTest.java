@@ -0,0 +1,216 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import com.kineticdata.bridgehub.adapter.BridgeError;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.XML;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2ResponseParserTest {
+
+    private static final String RESPONSE =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<DescribeInstancesResponse xmlns=\"http://ec2.amazonaws.com/doc/2016-09-15/\">\n"
+        + "  <requestId>8f7724cf-496f-496e-8fe3-example</requestId>\n"
+        + "  <reservationSet>\n"
+        + "    <item>\n"
+        + "      <reservationId>r-1</reservationId>\n"
+        + "      <instancesSet>\n"
+        + "        <item>\n"
+        + "          <instanceId>i-1</instanceId>\n"
+        + "          <instanceState><code>16</code><name>running</name></instanceState>\n"
+        + "          <instanceType>t2.micro</instanceType>\n"
+        + "          <reason/>\n"
+        + "          <tagSet><item><key>Name</key><value>web-1</value></item></tagSet>\n"
+        + "        </item>\n"
+        + "        <item>\n"
+        + "          <instanceId>i-2</instanceId>\n"
+        + "          <instanceState><code>80</code><name>stopped</name></instanceState>\n"
+        + "          <instanceType>m4.large</instanceType>\n"
+        + "          <reason>User initiated</reason>\n"
+        + "          <tagSet>\n"
+        + "            <item><key>Name</key><value>db-1</value></item>\n"
+        + "            <item><key>Env</key><value></value></item>\n"
+        + "          </tagSet>\n"
+        + "        </item>\n"
+        + "      </instancesSet>\n"
+        + "    </item>\n"
+        + "    <item>\n"
+        + "      <reservationId>r-2</reservationId>\n"
+        + "      <instancesSet>\n"
+        + "        <item>\n"
+        + "          <instanceId>i-3</instanceId>\n"
+        + "          <instanceState><code>16</code><name>running</name></instanceState>\n"
+        + "          <instanceType>t2.micro</instanceType>\n"
+        + "          <reason/>\n"
+        + "        </item>\n"
+        + "      </instancesSet>\n"
+        + "    </item>\n"
+        + "  </reservationSet>\n"
+        + "  <nextToken>token-2</nextToken>\n"
+        + "</DescribeInstancesResponse>\n";
+
+    @Test
+    public void test_parse_matchesXmlToJSONObject() throws Exception {
+        List<JSONObject> items = new ArrayList<JSONObject>();
+        String nextToken = AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream(RESPONSE), items::add);
+
+        assertEquals("token-2", nextToken);
+        List<JSONObject> expected = legacyInstances(RESPONSE);
+        assertEquals(expected.size(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(normalize(expected.get(i)), normalize(items.get(i)));
+        }
+    }
+
+    @Test
+    public void test_parse_projectedElements() throws Exception {
+        final Set<String> elements = new HashSet<String>(Arrays.asList("instanceId", "tagSet"));
+        final List<JSONObject> items = new ArrayList<JSONObject>();
+        AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream(RESPONSE),
+            new AmazonEC2ResponseParser.ProjectedItemHandler() {
+                @Override
+                public boolean handle(JSONObject item) {
+                    items.add(item);
+                    return true;
+                }
+
+                @Override
+                public Set<String> getElements() {
+                    return elements;
+                }
+            });
+
+        assertEquals(3, items.size());
+        assertEquals(elements, items.get(1).keySet());
+        assertEquals("db-1", AmazonEC2InstanceAttributes.tagValue(items.get(1), "Name"));
+        // An item none of whose projected elements are present is still an object
+        assertEquals(new HashSet<String>(Arrays.asList("instanceId")), items.get(2).keySet());
+    }
+
+    @Test
+    public void test_parse_counter() throws Exception {
+        AmazonEC2ResponseParser.ItemCounter counter = new AmazonEC2ResponseParser.ItemCounter();
+        AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream(RESPONSE), counter);
+
+        assertEquals(3, counter.getCount());
+    }
+
+    @Test
+    public void test_parse_stopsEarly() throws Exception {
+        final List<String> ids = new ArrayList<String>();
+        String nextToken = AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream(RESPONSE), item -> {
+            ids.add(item.getString("instanceId"));
+            return false;
+        });
+
+        assertEquals(Arrays.asList("i-1"), ids);
+        // The rest of the response is still read for its nextToken
+        assertEquals("token-2", nextToken);
+    }
+
+    @Test
+    public void test_parse_emptyResponse() throws Exception {
+        String response = "<DescribeInstancesResponse><requestId>r</requestId><reservationSet/>"
+            + "</DescribeInstancesResponse>";
+        AmazonEC2ResponseParser.ItemCounter counter = new AmazonEC2ResponseParser.ItemCounter();
+
+        assertNull(AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream(response), counter));
+        assertEquals(0, counter.getCount());
+    }
+
+    @Test
+    public void test_parse_unexpectedDocument() throws Exception {
+        try {
+            AmazonEC2ResponseParser.DESCRIBE_INSTANCES.parse(stream("<Response><Errors/></Response>"),
+                new AmazonEC2ResponseParser.ItemCounter());
+            fail("Expected a BridgeError.");
+        } catch (BridgeError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'Response'"));
+        }
+    }
+
+    @Test
+    public void test_parseError() throws Exception {
+        String response = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<Response><Errors><Error><Code>RequestLimitExceeded</Code>"
+            + "<Message>Request limit exceeded.</Message></Error></Errors>"
+            + "<RequestID>req-1</RequestID></Response>";
+        AmazonEC2Error error = AmazonEC2ResponseParser.parseError(stream(response), 503, "Service Unavailable");
+
+        assertEquals("RequestLimitExceeded", error.getCode());
+        assertEquals("req-1", error.getRequestId());
+        assertTrue(error.isThrottling());
+        assertTrue(error.isRetryable());
+
+        error = AmazonEC2ResponseParser.parseError(stream("<html>Bad Gateway</html>"), 502, "Bad Gateway");
+        assertNull(error.getCode());
+        assertTrue(error.isServerError());
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static InputStream stream(String response) {
+        return new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Converts JSONObjects and JSONArrays into sorted maps and lists, so they compare by value.
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject)value;
+            Map<String,Object> map = new TreeMap<String,Object>();
+            for (Object key : object.keySet()) {
+                map.put(key.toString(), normalize(object.get(key.toString())));
+            }
+            return map;
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray)value;
+            List<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < array.length(); i++) {
+                list.add(normalize(array.get(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    /**
+     * The instances as the adapter read them before the streaming parser, with XML.toJSONObject.
+     */
+    private static List<JSONObject> legacyInstances(String response) {
+        List<JSONObject> instances = new ArrayList<JSONObject>();
+        JSONObject reservationSet = XML.toJSONObject(response)
+            .getJSONObject("DescribeInstancesResponse").getJSONObject("reservationSet");
+        JSONArray reservations = reservationSet.optJSONArray("item");
+        if (reservations == null) {
+            reservations = new JSONArray().put(reservationSet.getJSONObject("item"));
+        }
+        for (int i = 0; i < reservations.length(); i++) {
+            JSONObject instancesSet = reservations.getJSONObject(i).getJSONObject("instancesSet");
+            JSONArray items = instancesSet.optJSONArray("item");
+            if (items == null) {
+                items = new JSONArray().put(instancesSet.getJSONObject("item"));
+            }
+            for (int j = 0; j < items.length(); j++) {
+                instances.add(items.getJSONObject(j));
+            }
+        }
+        return instances;
+    }
+
+}
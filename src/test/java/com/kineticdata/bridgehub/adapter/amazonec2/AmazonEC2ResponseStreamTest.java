@@ -0,0 +1,168 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2ResponseStreamTest {
+
+    @Test
+    public void test_consume_suspendsWhileTheBufferIsFull() throws Exception {
+        AmazonEC2ResponseStream stream = new AmazonEC2ResponseStream(4);
+        Decoder decoder = new Decoder("abcdefghij");
+        Connection connection = new Connection();
+
+        stream.consume(decoder, connection);
+        assertTrue(connection.suspended);
+        assertEquals(4, stream.available());
+
+        byte[] read = new byte[3];
+        assertEquals(3, stream.read(read, 0, 3));
+        assertEquals("abc", new String(read, StandardCharsets.UTF_8));
+        assertFalse(connection.suspended);
+    }
+
+    @Test
+    public void test_read_wholeBodyThroughASmallBuffer() throws Exception {
+        final AmazonEC2ResponseStream stream = new AmazonEC2ResponseStream(3);
+        final Decoder decoder = new Decoder("the whole response body");
+        final Connection connection = new Connection();
+        // The I/O thread, which reads again whenever the connection is resumed
+        Thread io = new Thread(() -> {
+            try {
+                while (!decoder.isCompleted()) {
+                    if (!connection.suspended) {
+                        stream.consume(decoder, connection);
+                    }
+                    Thread.yield();
+                }
+                stream.end();
+            } catch (IOException e) {
+                stream.fail(e);
+            }
+        });
+        io.start();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[2];
+        for (int n; (n = stream.read(chunk, 0, chunk.length)) >= 0; ) {
+            body.write(chunk, 0, n);
+        }
+        io.join();
+        assertEquals("the whole response body", new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_fail_afterTheBufferedBytes() throws Exception {
+        AmazonEC2ResponseStream stream = new AmazonEC2ResponseStream(16);
+        stream.consume(new Decoder("ab", false), new Connection());
+        IOException reset = new IOException("Connection reset");
+        stream.fail(reset);
+
+        assertEquals('a', stream.read());
+        assertEquals('b', stream.read());
+        try {
+            stream.read();
+            fail("Expected an IOException.");
+        } catch (IOException e) {
+            assertSame(reset, e);
+        }
+        assertSame(reset, stream.getFailure());
+    }
+
+    @Test
+    public void test_fail_ignoredOnceEnded() throws Exception {
+        AmazonEC2ResponseStream stream = new AmazonEC2ResponseStream(16);
+        stream.consume(new Decoder("ab"), new Connection());
+        stream.fail(null);
+
+        assertNull(stream.getFailure());
+        assertEquals(2, stream.read(new byte[4], 0, 4));
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void test_close_drainsTheRest() throws Exception {
+        AmazonEC2ResponseStream stream = new AmazonEC2ResponseStream(2);
+        Decoder decoder = new Decoder("abcdef");
+        Connection connection = new Connection();
+        stream.consume(decoder, connection);
+        assertTrue(connection.suspended);
+
+        stream.close();
+        assertFalse(connection.suspended);
+        stream.consume(decoder, connection);
+        assertTrue(decoder.isCompleted());
+        assertEquals(0, stream.available());
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    /**
+     * Decodes a fixed body, in whatever amounts the destination has room for.
+     */
+    private static class Decoder implements ContentDecoder {
+        private final ByteBuffer body;
+        private final boolean completes;
+
+        private Decoder(String body) {
+            this(body, true);
+        }
+
+        private Decoder(String body, boolean completes) {
+            this.body = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+            this.completes = completes;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer destination) {
+            if (!body.hasRemaining()) {
+                return completes ? -1 : 0;
+            }
+            int n = Math.min(destination.remaining(), body.remaining());
+            for (int i = 0; i < n; i++) {
+                destination.put(body.get());
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized boolean isCompleted() {
+            return completes && !body.hasRemaining();
+        }
+    }
+
+    private static class Connection implements IOControl {
+        private volatile boolean suspended = false;
+
+        @Override
+        public void requestInput() {
+            suspended = false;
+        }
+
+        @Override
+        public void suspendInput() {
+            suspended = true;
+        }
+
+        @Override
+        public void requestOutput() {
+        }
+
+        @Override
+        public void suspendOutput() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
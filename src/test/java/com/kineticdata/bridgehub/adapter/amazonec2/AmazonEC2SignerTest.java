@@ -0,0 +1,144 @@
+package com.kineticdata.bridgehub.adapter.amazonec2;
+
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class AmazonEC2SignerTest {
+
+    /** Credentials, host and region of the AWS Signature Version 4 test suite. */
+    private static final String ACCESS_KEY = "AKIDEXAMPLE";
+    private static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    private static final String HOST = "example.amazonaws.com";
+    private static final String REGION = "us-east-1";
+    private static final String SERVICE = "service";
+
+    @Test
+    public void test_getVanilla() throws Exception {
+        AmazonEC2Signer signer = new AmazonEC2Signer(ACCESS_KEY, SECRET_KEY, SERVICE);
+        AmazonEC2Signer.Signature signature = signer.sign(HOST, REGION, "", date("20150830T123600Z"));
+
+        assertEquals("20150830T123600Z", signature.getAmazonDate());
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, "
+            + "SignedHeaders=host;x-amz-date, "
+            + "Signature=5fa00fa31553b73ebf1942676e86291e8372ff2a2260956d9b8aae1d763fbf31",
+            signature.getAuthorization());
+    }
+
+    @Test
+    public void test_getVanillaQueryOrderKeyCase() throws Exception {
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("Param2", "value2");
+        parameters.put("Param1", "value1");
+        String canonicalQueryString = AmazonEC2Signer.canonicalQueryString(parameters);
+        assertEquals("Param1=value1&Param2=value2", canonicalQueryString);
+
+        AmazonEC2Signer signer = new AmazonEC2Signer(ACCESS_KEY, SECRET_KEY, SERVICE);
+        AmazonEC2Signer.Signature signature = signer.sign(HOST, REGION, canonicalQueryString,
+            date("20150830T123600Z"));
+
+        assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, "
+            + "SignedHeaders=host;x-amz-date, "
+            + "Signature=b97d918cfa904a5beff61c982a1b6f458b799221646efd99d3219ec94cdf2500",
+            signature.getAuthorization());
+    }
+
+    @Test
+    public void test_canonicalQueryString_encoding() throws Exception {
+        SortedMap<String,String> parameters = new TreeMap<String,String>();
+        parameters.put("Filter.1.Name", "tag:Name");
+        parameters.put("Filter.1.Value.1", "web server*");
+        parameters.put("Action", "DescribeInstances");
+
+        assertEquals("Action=DescribeInstances&Filter.1.Name=tag%3AName&Filter.1.Value.1=web%20server%2A",
+            AmazonEC2Signer.canonicalQueryString(parameters));
+    }
+
+    @Test
+    public void test_sign_matchesPreviousImplementation() throws Exception {
+        String[] regions = {"us-east-1", "us-west-2", "eu-central-1", "ap-southeast-2"};
+        String[] dates = {"20160823T123700Z", "20161231T235959Z", "20170101T000000Z", "20200229T081500Z"};
+        String canonicalQueryString = "Action=DescribeInstances&Filter.1.Name=instance-state-name"
+            + "&Filter.1.Value.1=running&Version=2016-09-15";
+
+        AmazonEC2Signer signer = new AmazonEC2Signer(ACCESS_KEY, SECRET_KEY);
+        for (String date : dates) {
+            for (String region : regions) {
+                String host = "ec2."+region+".amazonaws.com";
+                AmazonEC2Signer.Signature signature = signer.sign(host, region, canonicalQueryString, date(date));
+                assertEquals(date, signature.getAmazonDate());
+                assertEquals(date+" "+region,
+                    previousAuthorization(host, region, canonicalQueryString, date),
+                    signature.getAuthorization());
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------------------------------
+     * HELPER METHODS
+     *--------------------------------------------------------------------------------------------*/
+
+    private static Date date(String amazonDate) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.parse(amazonDate);
+    }
+
+    /**
+     * The Authorization header as the adapter built it before AmazonEC2Signer, with its
+     * getSignatureKey derivation.
+     */
+    private static String previousAuthorization(String host, String region, String canonicalQueryString,
+        String amazonDate
+    ) throws Exception {
+        String dateStamp = amazonDate.substring(0, 8);
+        String canonicalHeaders = String.format("host:%s\nx-amz-date:%s\n", host, amazonDate);
+        String signedHeaders = "host;x-amz-date";
+        String payloadHash = hex(MessageDigest.getInstance("SHA-256").digest(new byte[0]));
+        String canonicalRequest = "GET\n/\n" + canonicalQueryString + "\n" + canonicalHeaders + "\n"
+            + signedHeaders + "\n" + payloadHash;
+        String credentialScope = String.format("%s/%s/ec2/aws4_request", dateStamp, region);
+
+        byte[] signingKey = getSignatureKey(SECRET_KEY, dateStamp, region, "ec2");
+        String canonicalRequestHash = hex(MessageDigest.getInstance("SHA-256")
+            .digest(canonicalRequest.getBytes("UTF8")));
+        String stringToSign = String.format("AWS4-HMAC-SHA256\n%s\n%s\n%s", amazonDate, credentialScope,
+            canonicalRequestHash);
+        String signature = hex(HmacSHA256(stringToSign, signingKey));
+        return String.format("AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=host;x-amz-date, Signature=%s",
+            ACCESS_KEY, credentialScope, signature);
+    }
+
+    private static byte[] HmacSHA256(String data, byte[] key) throws Exception {
+        String algorithm = "HmacSHA256";
+        Mac mac = Mac.getInstance(algorithm);
+        mac.init(new SecretKeySpec(key, algorithm));
+        return mac.doFinal(data.getBytes("UTF8"));
+    }
+
+    private static byte[] getSignatureKey(String key, String dateStamp, String regionName, String serviceName)
+        throws Exception
+    {
+        byte[] kSecret = ("AWS4" + key).getBytes("UTF8");
+        byte[] kDate = HmacSHA256(dateStamp, kSecret);
+        byte[] kRegion = HmacSHA256(regionName, kDate);
+        byte[] kService = HmacSHA256(serviceName, kRegion);
+        return HmacSHA256("aws4_request", kService);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+}